@@ -0,0 +1,83 @@
+package edu.umass.cs.cs646.bench;
+
+import edu.umass.cs.cs646.BatchSearch;
+import edu.umass.cs.cs646.CollectionStatsCache;
+import edu.umass.cs.cs646.DocumentVectorCache;
+import edu.umass.cs.cs646.MixtureFeedbackModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.ScoredDocument;
+import org.lemurproject.galago.utility.Parameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end queries per second of BatchSearch.search with mixture model
+ * expansion, over the synthetic query set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BatchThroughputBenchmark {
+    static final int QUERIES = 50;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Retrieval retrieval;
+    private MixtureFeedbackModel model;
+    private List<String> queries;
+    private ExecutorService executor;
+    private BatchSearch batchSearch;
+
+    @Setup
+    public void setup(IndexState state) throws Exception {
+        retrieval = state.index.getRetrieval();
+        model = new MixtureFeedbackModel(retrieval, new CollectionStatsCache(retrieval),
+                new DocumentVectorCache(retrieval.getGlobalParameters()));
+        queries = state.queries.subList(0, QUERIES);
+        executor = Executors.newFixedThreadPool(threads);
+        batchSearch = new BatchSearch();
+    }
+
+    @TearDown
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int batch() throws Exception {
+        List<Future<List<ScoredDocument>>> pending = new ArrayList<>(queries.size());
+        for (int i = 0; i < queries.size(); i++) {
+            final Parameters query = Parameters.create();
+            query.set("number", Integer.toString(i));
+            query.set("text", queries.get(i));
+            pending.add(executor.submit(() -> batchSearch.search(retrieval, model, query)));
+        }
+        int total = 0;
+        for (Future<List<ScoredDocument>> f : pending) {
+            total += f.get().size();
+        }
+        return total;
+    }
+}
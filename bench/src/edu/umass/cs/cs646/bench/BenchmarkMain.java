@@ -0,0 +1,23 @@
+package edu.umass.cs.cs646.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the expansion pipeline benchmarks with the GC profiler, which adds
+ * allocation rate (gc.alloc.rate.norm) and GC counts to every result.
+ *
+ * Usage: BenchmarkMain [benchmark regex] (default: all benchmarks in this package)
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        String include = (args.length > 0) ? args[0] : BenchmarkMain.class.getPackage().getName() + ".*Benchmark";
+        Options opt = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,85 @@
+package edu.umass.cs.cs646.bench;
+
+import edu.umass.cs.cs646.DocumentVectorCache;
+import edu.umass.cs.cs646.FeedbackData;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.ScoredDocument;
+import org.lemurproject.galago.core.retrieval.query.Node;
+import org.lemurproject.galago.core.retrieval.query.StructuredQuery;
+import org.lemurproject.galago.core.util.WordLists;
+import org.lemurproject.galago.utility.Parameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FeedbackData construction for the top fbDocs documents of one query,
+ * fetched from the index (serially and on a fetch pool) and from a warm
+ * document vector cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeedbackDataBenchmark {
+    @Param({"10", "50", "100"})
+    public int fbDocs;
+
+    private Retrieval retrieval;
+    private Set<String> stopwords;
+    private List<ScoredDocument> initialResults;
+    private Parameters fbParams;
+    private DocumentVectorCache warmCache;
+    private ExecutorService fetchPool;
+
+    @Setup
+    public void setup(IndexState state) throws Exception {
+        retrieval = state.index.getRetrieval();
+        stopwords = WordLists.getWordList("rmstop");
+        fbParams = Parameters.create();
+        fbParams.set("requested", fbDocs);
+        Node root = StructuredQuery.parse(state.queries.get(0));
+        initialResults = retrieval.executeQuery(retrieval.transformQuery(root, fbParams), fbParams).scoredDocuments;
+
+        warmCache = new DocumentVectorCache(DocumentVectorCache.DEFAULT_MAXIMUM_BYTES, false);
+        new FeedbackData(retrieval, stopwords, initialResults, fbParams, warmCache);
+        fetchPool = Executors.newFixedThreadPool(8);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fetchPool.shutdownNow();
+    }
+
+    @Benchmark
+    public FeedbackData fromIndex() throws Exception {
+        return new FeedbackData(retrieval, stopwords, initialResults, fbParams);
+    }
+
+    @Benchmark
+    public FeedbackData fromIndexParallel() throws Exception {
+        return new FeedbackData(retrieval, stopwords, initialResults, fbParams, null,
+                FeedbackData.getStemmer(null, retrieval), fetchPool);
+    }
+
+    @Benchmark
+    public FeedbackData fromWarmCache() throws Exception {
+        return new FeedbackData(retrieval, stopwords, initialResults, fbParams, warmCache);
+    }
+}
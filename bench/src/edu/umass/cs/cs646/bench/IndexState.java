@@ -0,0 +1,34 @@
+package edu.umass.cs.cs646.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Shared synthetic index, built once per trial.
+ */
+@State(Scope.Benchmark)
+public class IndexState {
+    public static final int NUM_DOCS = 5000;
+    public static final int VOCAB_SIZE = 50000;
+    public static final int MEAN_DOC_LENGTH = 400;
+
+    public SyntheticIndex index;
+    public List<String> queries;
+
+    @Setup(Level.Trial)
+    public void build() throws Exception {
+        index = SyntheticIndex.build(NUM_DOCS, VOCAB_SIZE, MEAN_DOC_LENGTH, 42);
+        queries = index.sampleQueries(50, 3, new Random(7));
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        index.close();
+    }
+}
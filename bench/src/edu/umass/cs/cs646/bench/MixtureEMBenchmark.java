@@ -0,0 +1,63 @@
+package edu.umass.cs.cs646.bench;
+
+import edu.umass.cs.cs646.MixtureEM;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The EM step alone, over synthetic feedback vocabularies of varying size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixtureEMBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int vocabSize;
+
+    @Param({"0.5"})
+    public double lambda;
+
+    private int[] termFreqs;
+    private double[] pwc;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        ZipfSampler zipf = new ZipfSampler(vocabSize, SyntheticIndex.DEFAULT_EXPONENT);
+        termFreqs = new int[vocabSize];
+        // feedback counts drawn from the same law as the collection
+        for (int i = 0; i < vocabSize * 10; i++) {
+            termFreqs[zipf.sample(random)]++;
+        }
+        pwc = new double[vocabSize];
+        double sum = 0.0;
+        for (int i = 0; i < vocabSize; i++) {
+            pwc[i] = 1.0 / Math.pow(i + 1, SyntheticIndex.DEFAULT_EXPONENT);
+            sum += pwc[i];
+            if (termFreqs[i] == 0)
+                termFreqs[i] = 1;
+        }
+        for (int i = 0; i < vocabSize; i++) {
+            pwc[i] /= sum;
+        }
+    }
+
+    @Benchmark
+    public double[] em() {
+        return new MixtureEM(termFreqs, pwc, lambda).run();
+    }
+}
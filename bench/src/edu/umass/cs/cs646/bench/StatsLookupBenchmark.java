@@ -0,0 +1,61 @@
+package edu.umass.cs.cs646.bench;
+
+import edu.umass.cs.cs646.CollectionStatsCache;
+import edu.umass.cs.cs646.FeedbackData;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.ScoredDocument;
+import org.lemurproject.galago.core.retrieval.query.Node;
+import org.lemurproject.galago.core.retrieval.query.StructuredQuery;
+import org.lemurproject.galago.core.util.WordLists;
+import org.lemurproject.galago.utility.Parameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * p(w|C) lookup for the vocabulary of one feedback set, against a cold and a
+ * warm CollectionStatsCache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsLookupBenchmark {
+    private Retrieval retrieval;
+    private String[] terms;
+    private CollectionStatsCache warmCache;
+
+    @Setup
+    public void setup(IndexState state) throws Exception {
+        retrieval = state.index.getRetrieval();
+        Parameters fbParams = Parameters.create();
+        fbParams.set("requested", 10);
+        Node root = StructuredQuery.parse(state.queries.get(0));
+        List<ScoredDocument> initialResults = retrieval.executeQuery(retrieval.transformQuery(root, fbParams), fbParams).scoredDocuments;
+        terms = new FeedbackData(retrieval, WordLists.getWordList("rmstop"), initialResults, fbParams).getTerms();
+
+        warmCache = new CollectionStatsCache(retrieval);
+        warmCache.getProbabilities(terms);
+    }
+
+    @Benchmark
+    public double[] cold() throws Exception {
+        return new CollectionStatsCache(retrieval).getProbabilities(terms);
+    }
+
+    @Benchmark
+    public double[] warm() throws Exception {
+        return warmCache.getProbabilities(terms);
+    }
+}
@@ -0,0 +1,126 @@
+package edu.umass.cs.cs646.bench;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.RetrievalFactory;
+import org.lemurproject.galago.core.tools.App;
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * A small Galago index over a generated Zipfian corpus, built in a
+ * temporary directory and deleted on close.
+ */
+public class SyntheticIndex implements Closeable {
+    public static final double DEFAULT_EXPONENT = 1.07;
+
+    private final File dir;
+    private final File indexDir;
+    private final Retrieval retrieval;
+    private final int vocabSize;
+
+    private SyntheticIndex(File dir, File indexDir, int vocabSize) throws Exception {
+        this.dir = dir;
+        this.indexDir = indexDir;
+        this.vocabSize = vocabSize;
+        this.retrieval = RetrievalFactory.instance(indexDir.getAbsolutePath(), Parameters.create());
+    }
+
+    /**
+     * Writes a TREC text corpus of numDocs documents whose terms follow a
+     * Zipf law over vocabSize terms, and indexes it with Galago's build app.
+     */
+    public static SyntheticIndex build(int numDocs, int vocabSize, int meanDocLength, long seed) throws Exception {
+        File dir = Files.createTempDirectory("mm-bench").toFile();
+        File corpus = new File(dir, "corpus.trectext");
+        writeCorpus(corpus, numDocs, new ZipfSampler(vocabSize, DEFAULT_EXPONENT), meanDocLength, new Random(seed));
+
+        File indexDir = new File(dir, "index");
+        App.run(new String[]{"build", "--inputPath=" + corpus.getAbsolutePath(), "--indexPath=" + indexDir.getAbsolutePath()});
+        return new SyntheticIndex(dir, indexDir, vocabSize);
+    }
+
+    static void writeCorpus(File corpus, int numDocs, ZipfSampler terms, int meanDocLength, Random random) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(corpus.toPath()), StandardCharsets.UTF_8))) {
+            for (int d = 0; d < numDocs; d++) {
+                out.write("<DOC>\n<DOCNO>" + documentName(d) + "</DOCNO>\n<TEXT>\n");
+                // document lengths vary uniformly in [mean / 2, 3 * mean / 2)
+                int length = meanDocLength / 2 + random.nextInt(Math.max(1, meanDocLength));
+                for (int i = 0; i < length; i++) {
+                    out.write(term(terms.sample(random)));
+                    out.write((i % 16 == 15) ? '\n' : ' ');
+                }
+                out.write("\n</TEXT>\n</DOC>\n");
+            }
+        }
+    }
+
+    public static String documentName(int d) {
+        return String.format("SYN-%07d", d);
+    }
+
+    /**
+     * @return a purely alphabetic token for the term of the given rank
+     */
+    public static String term(int rank) {
+        StringBuilder sb = new StringBuilder("q");
+        int r = rank;
+        do {
+            sb.append((char) ('a' + r % 26));
+            r /= 26;
+        } while (r > 0);
+        return sb.toString();
+    }
+
+    /**
+     * Samples queries of the given length from the mid-frequency terms, which
+     * behave like topical query words rather than stopwords.
+     */
+    public List<String> sampleQueries(int count, int length, Random random) {
+        int lo = Math.min(10, vocabSize - 1);
+        int hi = Math.min(1000, vocabSize);
+        List<String> queries = new ArrayList<>(count);
+        for (int q = 0; q < count; q++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                if (i > 0)
+                    sb.append(' ');
+                sb.append(term(lo + random.nextInt(Math.max(1, hi - lo))));
+            }
+            queries.add(sb.toString());
+        }
+        return queries;
+    }
+
+    public Retrieval getRetrieval() {
+        return retrieval;
+    }
+
+    public File getIndexDir() {
+        return indexDir;
+    }
+
+    @Override
+    public void close() throws IOException {
+        retrieval.close();
+        delete(dir);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children)
+                delete(c);
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,219 @@
+package edu.umass.cs.cs646.bench;
+
+import edu.umass.cs.cs646.BackgroundModel;
+import edu.umass.cs.cs646.BatchSearch;
+import edu.umass.cs.cs646.DocumentVectorCache;
+import edu.umass.cs.cs646.ExpansionCache;
+import edu.umass.cs.cs646.LatencyHistogram;
+import edu.umass.cs.cs646.MixtureFeedbackModel;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.RetrievalFactory;
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * End-to-end load test of {@link BatchSearch#retrieve}: query file in, run
+ * file out, with mixture model expansion and the expansion cache.
+ *
+ * Builds a synthetic Zipfian index, generates a query log in which each
+ * query repeats an earlier one with probability repeatRate, and runs the
+ * whole log once per concurrency level, after an unmeasured warm-up run.
+ * Every level prints one JSON line with QPS, per-query latency percentiles,
+ * GC count and time, and peak heap, so runs before and after a change can
+ * be diffed. Opening the index and the model is not timed, and the
+ * per-query INFO logging of BatchSearch is turned off during the runs.
+ *
+ * Usage: ThroughputHarness [--numDocs=20000] [--vocabSize=50000]
+ * [--docLength=300] [--queries=500] [--queryLength=3] [--repeatRate=0.3]
+ * [--threads+1 --threads+4 ...] [--warmup=50] [--seed=42] [--output=file]
+ */
+public class ThroughputHarness {
+    private final Parameters p;
+    private final long seed;
+
+    public ThroughputHarness(Parameters p) {
+        this.p = p;
+        this.seed = p.get("seed", 42L);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ThroughputHarness(Parameters.parseArgs(args)).run();
+    }
+
+    public void run() throws Exception {
+        int numQueries = (int) p.get("queries", 500L);
+        int queryLength = (int) p.get("queryLength", 3L);
+        double repeatRate = p.get("repeatRate", 0.3);
+        List<Long> threads = p.containsKey("threads") ? p.getAsList("threads", Long.class) : Arrays.asList(1L, 2L, 4L, 8L);
+
+        File dir = Files.createTempDirectory("mm-load").toFile();
+        try (SyntheticIndex index = SyntheticIndex.build((int) p.get("numDocs", 20000L), (int) p.get("vocabSize", 50000L),
+                (int) p.get("docLength", 300L), seed)) {
+            String indexPath = index.getIndexDir().getAbsolutePath();
+            List<String> pool = index.sampleQueries(numQueries, queryLength, new Random(seed + 1));
+            File queryFile = new File(dir, "queries.tsv");
+            int distinct = writeQueryLog(queryFile, pool, numQueries, repeatRate, new Random(seed + 2));
+            File warmupFile = new File(dir, "warmup.tsv");
+            writeQueryLog(warmupFile, pool, (int) p.get("warmup", 50L), 0.0, new Random(seed + 3));
+
+            // JIT warm-up; every measured run starts with cold caches of its own
+            run(indexPath, warmupFile, dir, 1);
+            for (long t : threads) {
+                Parameters result = run(indexPath, queryFile, dir, (int) t);
+                result.set("queries", (long) numQueries);
+                result.set("distinctQueries", (long) distinct);
+                result.set("repeatRate", repeatRate);
+                result.set("numDocs", p.get("numDocs", 20000L));
+                report(result.toString());
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files)
+                    f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Prints a result line, and appends it to --output if given.
+     */
+    private void report(String line) throws IOException {
+        System.out.println(line);
+        if (p.isString("output")) {
+            Files.write(Paths.get(p.getString("output")), (line + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * Writes numQueries rows of "number TAB text"; each row repeats a
+     * uniformly chosen earlier row with probability repeatRate and draws a
+     * fresh query from pool otherwise.
+     *
+     * @return the number of distinct queries in the log
+     */
+    static int writeQueryLog(File file, List<String> pool, int numQueries, double repeatRate, Random random) throws IOException {
+        List<String> log = new ArrayList<>(numQueries);
+        int distinct = 0;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8))) {
+            for (int q = 0; q < numQueries; q++) {
+                String text;
+                if (!log.isEmpty() && random.nextDouble() < repeatRate) {
+                    text = log.get(random.nextInt(log.size()));
+                } else {
+                    text = pool.get(distinct++ % pool.size());
+                }
+                log.add(text);
+                out.write(q + "\t" + text + "\n");
+            }
+        }
+        return Math.min(distinct, pool.size());
+    }
+
+    /**
+     * Runs the query log once on the given number of threads, on a freshly
+     * opened index and model.
+     */
+    Parameters run(String indexPath, File queryFile, File dir, int threads) throws Exception {
+        File runFile = new File(dir, "run.txt");
+        File traceFile = new File(dir, "trace.jsonl");
+        Parameters global = Parameters.create();
+        global.set("expansionCache", true);
+        Retrieval retrieval = RetrievalFactory.instance(indexPath, global);
+        ExpansionCache expansionCache = ExpansionCache.open(retrieval);
+        MixtureFeedbackModel model = new MixtureFeedbackModel(retrieval, BackgroundModel.open(retrieval),
+                new DocumentVectorCache(retrieval.getGlobalParameters()), expansionCache);
+        try {
+            return run(retrieval, model, queryFile, runFile, traceFile, threads);
+        } finally {
+            if (expansionCache != null)
+                expansionCache.close();
+            retrieval.close();
+        }
+    }
+
+    private Parameters run(Retrieval retrieval, MixtureFeedbackModel model, File queryFile, File runFile, File traceFile, int threads) throws Exception {
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                heapPools.add(pool);
+        }
+        System.gc();
+        for (MemoryPoolMXBean pool : heapPools) {
+            pool.resetPeakUsage();
+        }
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount -= gc.getCollectionCount();
+            gcMillis -= gc.getCollectionTime();
+        }
+
+        BatchSearch search = new BatchSearch();
+        search.setTraceFile(traceFile.getAbsolutePath());
+        Logger searchLogger = org.lemurproject.galago.core.tools.apps.BatchSearch.logger;
+        Level level = searchLogger.getLevel();
+        searchLogger.setLevel(Level.WARNING);
+        long start = System.nanoTime();
+        long elapsed;
+        try {
+            search.retrieve(retrieval, model, runFile.getAbsolutePath(), queryFile.getAbsolutePath(), threads);
+            elapsed = System.nanoTime() - start;
+        } finally {
+            searchLogger.setLevel(level);
+        }
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcMillis += gc.getCollectionTime();
+        }
+        // sum of the per-pool peaks, an upper bound of the peak heap
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        // per-query latency of the whole search, from the trace
+        LatencyHistogram latency = new LatencyHistogram();
+        try (BufferedReader in = Files.newBufferedReader(traceFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                latency.record((long) (Parameters.parseString(line).getDouble("totalMs") * 1e6));
+            }
+        }
+
+        Parameters res = Parameters.create();
+        res.set("threads", (long) threads);
+        res.set("seconds", elapsed / 1e9);
+        res.set("qps", latency.getCount() / (elapsed / 1e9));
+        res.set("meanMs", latency.getMean() / 1e6);
+        res.set("p50Ms", latency.getValueAtPercentile(50) / 1e6);
+        res.set("p99Ms", latency.getValueAtPercentile(99) / 1e6);
+        res.set("maxMs", latency.getMax() / 1e6);
+        res.set("gcCount", gcCount);
+        res.set("gcMs", gcMillis);
+        res.set("peakHeapBytes", peakHeap);
+        return res;
+    }
+}
@@ -0,0 +1,32 @@
+package edu.umass.cs.cs646.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws ranks in [0, n) with probability proportional to 1 / (rank + 1)^s.
+ */
+public class ZipfSampler {
+    private final double[] cdf;
+
+    public ZipfSampler(int n, double exponent) {
+        cdf = new double[n];
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+    }
+
+    public int sample(Random random) {
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min((i >= 0) ? i : -i - 1, cdf.length - 1);
+    }
+
+    public int size() {
+        return cdf.length;
+    }
+}
@@ -0,0 +1,37 @@
+package edu.umass.cs.cs646;
+
+import java.io.IOException;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * Source of the collection language model p(w|C) used by the mixture model.
+ */
+public interface BackgroundModel {
+
+    long getCollectionLength();
+
+    /**
+     * @return p(w|C) for every term, 0 for terms not in the collection
+     */
+    double[] getProbabilities(String[] terms) throws Exception;
+
+    /**
+     * @return the precomputed file named by the global parameter
+     * "backgroundModel" (see {@link BuildBackgroundModel}), or a
+     * {@link CollectionStatsCache} over the index if it is not set. The file
+     * has to come from the index part that queries read term counts from,
+     * so that both give the same p(w|C).
+     */
+    static BackgroundModel open(Retrieval r) throws Exception {
+        Parameters global = r.getGlobalParameters();
+        if (global.isString("backgroundModel")) {
+            BackgroundModelFile file = BackgroundModelFile.open(global.getString("backgroundModel"));
+            String part = BackgroundModelFile.getQueryPart(r);
+            if (part != null && !part.equals(file.getPart()))
+                throw new IOException(file + " was built from part " + file.getPart() + ", but queries count terms in part " + part);
+            return file;
+        }
+        return new CollectionStatsCache(r);
+    }
+}
@@ -0,0 +1,251 @@
+package edu.umass.cs.cs646;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.query.Node;
+import org.lemurproject.galago.core.retrieval.query.StructuredQuery;
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * Memory-mapped table of collection frequencies, written by
+ * {@link BuildBackgroundModel}.
+ *
+ * Layout (big-endian): a 32 byte header (magic, version, collection length,
+ * number of terms, number of hash slots, size of the term bytes), the name
+ * of the index part the counts come from (int length, UTF-8), then the
+ * frequencies (long per term), the term offsets (int per term, plus one),
+ * an open-addressing hash table of term id + 1 (int per slot, 0 for empty)
+ * and the UTF-8 bytes of all terms, in index key order. A lookup hashes the
+ * term, probes the table and compares bytes in place, so opening the file
+ * reads nothing but the header and lookups copy nothing out of the mapping.
+ */
+public class BackgroundModelFile implements BackgroundModel {
+    public static final int MAGIC = 0x4D4D4247;
+    public static final int VERSION = 2;
+    static final int HEADER_SIZE = 32;
+
+    private final String fileName;
+    private final String part;
+    private final long collectionLength;
+    private final int numTerms;
+    private final int slotMask;
+    private final LongBuffer frequencies;
+    private final IntBuffer offsets;
+    private final IntBuffer slots;
+    private final ByteBuffer termBytes;
+
+    private BackgroundModelFile(String fileName, FileChannel channel) throws IOException {
+        this.fileName = fileName;
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC)
+            throw new IOException("Not a background model file: " + fileName);
+        int version = header.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported background model version: " + version);
+        collectionLength = header.getLong();
+        numTerms = header.getInt();
+        int numSlots = header.getInt();
+        long numBytes = header.getLong();
+        slotMask = numSlots - 1;
+        int partLength = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 4).getInt();
+        byte[] partBytes = new byte[partLength];
+        channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + 4, partLength).get(partBytes);
+        part = new String(partBytes, StandardCharsets.UTF_8);
+
+        // each section is mapped on its own, so only a section is limited to 2GB
+        long pos = HEADER_SIZE + 4 + partLength;
+        frequencies = channel.map(FileChannel.MapMode.READ_ONLY, pos, 8L * numTerms).asLongBuffer();
+        pos += 8L * numTerms;
+        offsets = channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L * (numTerms + 1)).asIntBuffer();
+        pos += 4L * (numTerms + 1);
+        slots = channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L * numSlots).asIntBuffer();
+        pos += 4L * numSlots;
+        termBytes = channel.map(FileChannel.MapMode.READ_ONLY, pos, numBytes);
+    }
+
+    public static BackgroundModelFile open(String fileName) throws IOException {
+        // the mappings stay valid after the channel is closed
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            return new BackgroundModelFile(fileName, file.getChannel());
+        }
+    }
+
+    /**
+     * @return the index part that transformQuery assigns to term count
+     * nodes, which is where {@link CollectionStatsCache} gets its counts, or
+     * null if the transformed query names no part
+     */
+    public static String getQueryPart(Retrieval retrieval) throws Exception {
+        Node node = StructuredQuery.parse("a");
+        node.getNodeParameters().set("queryType", "count");
+        return findPart(retrieval.transformQuery(node, Parameters.create()));
+    }
+
+    private static String findPart(Node node) {
+        String part = node.getNodeParameters().get("part", (String) null);
+        if (part != null)
+            return part;
+        for (Node child : node.getInternalNodes()) {
+            part = findPart(child);
+            if (part != null)
+                return part;
+        }
+        return null;
+    }
+
+    /**
+     * Writes a background model file.
+     *
+     * @param part the index part the frequencies come from
+     * @param terms distinct terms, in the order they are stored
+     * @param frequencies collection frequency of each term
+     */
+    public static void write(String fileName, String part, long collectionLength, List<String> terms, long[] frequencies) throws IOException {
+        int numTerms = terms.size();
+        int numSlots = tableSize(numTerms);
+        int[] offsets = new int[numTerms + 1];
+        int[] slots = new int[numSlots];
+        long numBytes = 0;
+        for (int id = 0; id < numTerms; id++) {
+            String term = terms.get(id);
+            numBytes += term.getBytes(StandardCharsets.UTF_8).length;
+            if (numBytes > Integer.MAX_VALUE)
+                throw new IOException("Term dictionary exceeds 2GB");
+            offsets[id + 1] = (int) numBytes;
+            int slot = hash(term) & (numSlots - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (numSlots - 1);
+            }
+            slots[slot] = id + 1;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 20))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(collectionLength);
+            out.writeInt(numTerms);
+            out.writeInt(numSlots);
+            out.writeLong(numBytes);
+            byte[] partBytes = part.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(partBytes.length);
+            out.write(partBytes);
+            for (int id = 0; id < numTerms; id++) {
+                out.writeLong(frequencies[id]);
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            for (int slot : slots) {
+                out.writeInt(slot);
+            }
+            for (String term : terms) {
+                out.write(term.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * @return a power of two with a load factor of at most 0.5
+     */
+    static int tableSize(int numTerms) {
+        int size = 2;
+        while (size < 2L * numTerms) {
+            if (size >= (1 << 30))
+                throw new IllegalArgumentException("Too many terms: " + numTerms);
+            size <<= 1;
+        }
+        return size;
+    }
+
+    static int hash(String term) {
+        // String.hashCode is fixed by the language spec; spread it over the low bits
+        int h = term.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the id of the term, or -1 if it is not in the file
+     */
+    public int getTermId(String term) {
+        byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+        int slot = hash(term) & slotMask;
+        int entry;
+        while ((entry = slots.get(slot)) != 0) {
+            if (matches(entry - 1, bytes))
+                return entry - 1;
+            slot = (slot + 1) & slotMask;
+        }
+        return -1;
+    }
+
+    private boolean matches(int id, byte[] bytes) {
+        int start = offsets.get(id);
+        if (offsets.get(id + 1) - start != bytes.length)
+            return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if (termBytes.get(start + i) != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    public String getTerm(int id) {
+        int start = offsets.get(id);
+        byte[] bytes = new byte[offsets.get(id + 1) - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = termBytes.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public long getCollectionFrequency(String term) {
+        int id = getTermId(term);
+        return (id < 0) ? 0 : frequencies.get(id);
+    }
+
+    @Override
+    public long getCollectionLength() {
+        return collectionLength;
+    }
+
+    @Override
+    public double[] getProbabilities(String[] terms) {
+        double[] res = new double[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            res[i] = (double) getCollectionFrequency(terms[i]) / collectionLength;
+        }
+        return res;
+    }
+
+    /**
+     * @return the index part the frequencies come from
+     */
+    public String getPart() {
+        return part;
+    }
+
+    public int size() {
+        return numTerms;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BackgroundModelFile[file=%s, part=%s, terms=%d, collectionLength=%d]",
+                fileName, part, numTerms, collectionLength);
+    }
+}
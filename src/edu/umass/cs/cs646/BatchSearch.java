@@ -1,13 +1,14 @@
 package edu.umass.cs.cs646;
 
-import com.univocity.parsers.tsv.*;
-
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.lemurproject.galago.core.retrieval.Retrieval;
 import org.lemurproject.galago.core.retrieval.RetrievalFactory;
 import org.lemurproject.galago.core.retrieval.ScoredDocument;
@@ -22,85 +23,313 @@ import org.lemurproject.galago.utility.Parameters;
  * @author Hamed Zamani (zamani@cs.umass.edu)
  */
 public class BatchSearch {
+    // in-flight queries per worker thread in parallel mode
+    static final int PENDING_PER_THREAD = 4;
+    // global parameters of the retrieval: cache sizes, backgroundModel, ...
+    Parameters globalParameters = Parameters.create();
+    // optional per-query JSONL trace
+    String traceFileName;
+    // resumable output through a RunJournal
+    boolean checkpoint;
+    boolean checkpointSync;
+    // this process runs the queries with index % numShards == shard
+    int shard = 0;
+    int numShards = 1;
     
+    /**
+     * Usage: BatchSearch --index=path --queries=file --output=file
+     * [--threads=N] [--shard=i --numShards=N] [--checkpoint=true]
+     * [--checkpointSync=true] [--trace=file]
+     *
+     * All parameters are also passed to the index as global parameters.
+     */
     public static void main(String[] args) throws Exception{
-//        String indexPath = "/home/pxyu/Documents/github/646-hw2/robust04-complete-index";
-//        String outputFileName = "/home/pxyu/Documents/github/646-hw2/search_results/mm.txt";
-//        String queryFileName = "/home/pxyu/Documents/github/646-hw2/query.titles.tsv";
-        String indexPath = "C:\\Users\\Puxuan Yu\\Documents\\GitHub\\646-hw2\\robust04-complete-index\\";
-        String outputFileName = "C:\\Users\\Puxuan Yu\\Documents\\GitHub\\646-hw2\\search_results\\mm_smoothed.res";
-        String queryFileName = "C:\\Users\\Puxuan Yu\\Documents\\GitHub\\646-hw2\\query.titles.tsv";
-        new BatchSearch().retrieve(indexPath, outputFileName, queryFileName);
+        Parameters p = Parameters.parseArgs(args);
+        if (!p.isString("index") || !p.isString("queries") || !p.isString("output")) {
+            System.err.println("Usage: BatchSearch --index=path --queries=file --output=file [--threads=N]"
+                    + " [--shard=i --numShards=N] [--checkpoint=true] [--checkpointSync=true] [--trace=file]");
+            System.exit(1);
+        }
+        BatchSearch search = new BatchSearch();
+        search.setGlobalParameters(p);
+        search.setTraceFile(p.get("trace", (String) null));
+        search.setCheckpoint(p.get("checkpoint", false), p.get("checkpointSync", false));
+        search.setShard((int) p.get("shard", 0L), (int) p.get("numShards", 1L));
+        search.retrieve(p.getString("index"), p.getString("output"), p.getString("queries"),
+                (int) p.get("threads", (long) Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Sets the global parameters the index is opened with, which configure
+     * the caches, the background model and the fetch pool.
+     */
+    public void setGlobalParameters(Parameters globalParameters) {
+        this.globalParameters = globalParameters;
+    }
+
+    /**
+     * @param traceFileName file receiving one JSON line of timings per query, or null
+     */
+    public void setTraceFile(String traceFileName) {
+        this.traceFileName = traceFileName;
+    }
+
+    /**
+     * Journals every completed query next to the output file, so that a
+     * rerun with the same output file skips them and continues where the
+     * last run stopped. Since the journal identifies queries by number,
+     * only the first query with a given number is run; later duplicates are
+     * skipped with a warning, in fresh and resumed runs alike.
+     *
+     * @param sync if true, every completed query is forced to disk
+     */
+    public void setCheckpoint(boolean checkpoint, boolean sync) {
+        this.checkpoint = checkpoint;
+        this.checkpointSync = sync;
+    }
+
+    /**
+     * Restricts the run to every numShards-th query of the query file,
+     * starting at the shard-th. The run files of all shards are combined
+     * with {@link RunMerger}.
+     */
+    public void setShard(int shard, int numShards) {
+        if (numShards <= 0 || shard < 0 || shard >= numShards)
+            throw new IllegalArgumentException("Invalid shard " + shard + " of " + numShards);
+        this.shard = shard;
+        this.numShards = numShards;
     }
 
     public void retrieve(String indexPath, String outputFileName, String queryFileName) throws Exception {
-        int requested = 1000; // number of documents to retrieve
-        boolean append = false;
+        retrieve(indexPath, outputFileName, queryFileName, 1);
+    }
+
+    /**
+     * Runs every query of the query file against the index, or only those of
+     * this shard that the checkpoint journal does not list as completed. The
+     * query file is streamed row by row. With more than one thread, queries are executed
+     * concurrently on a fixed pool sharing one Retrieval and one expansion
+     * model, with a bounded number of queries in flight; results are written
+     * as soon as they are available, in query-file order.
+     */
+    public void retrieve(String indexPath, String outputFileName, String queryFileName, int threads) throws Exception {
         boolean queryExpansion = true;
         // open index
-        Retrieval retrieval = RetrievalFactory.instance(indexPath, Parameters.create());
+        Retrieval retrieval = RetrievalFactory.instance(indexPath, globalParameters);
+        BackgroundModel background = BackgroundModel.open(retrieval);
+        DocumentVectorCache documentCache = new DocumentVectorCache(retrieval.getGlobalParameters());
+        ExpansionCache expansionCache = ExpansionCache.open(retrieval);
+        // This query expansion technique can be replaced by other approaches.
+        //ExpansionModel qe = new org.lemurproject.galago.core.retrieval.prf.RelevanceModel3(retrieval);
+        ExpansionModel qe = queryExpansion ? new MixtureFeedbackModel(retrieval, background, documentCache, expansionCache) : null;
+
+        try {
+            retrieve(retrieval, qe, outputFileName, queryFileName, threads);
+        } finally {
+            logger.info(background.toString());
+            logger.info(documentCache.toString());
+            if (expansionCache != null) {
+                logger.info(expansionCache.toString());
+                expansionCache.close();
+            }
+        }
+    }
 
-        // load queries
-        TsvParser parser = new TsvParser(new TsvParserSettings());
-        List<String[]> queriesFile = parser.parseAll(getFile(queryFileName));
-        List <Parameters> queries = new ArrayList <> ();
+    /**
+     * Same as above, on an index and expansion model (null for none) that are
+     * already open, which are left open.
+     */
+    public void retrieve(Retrieval retrieval, ExpansionModel qe, String outputFileName, String queryFileName, int threads) throws Exception {
+        boolean append = false;
+        // open output file, after the journal has cut it back to the last completed query
+        RunJournal journal = checkpoint ? new RunJournal(outputFileName, true, checkpointSync) : null;
+        // query numbers taken by this run, so duplicates are skipped before their first result is written
+        Set<String> submitted = new HashSet<>();
+        RunFileWriter resultWriter = null;
 
-        for (String[] line: queriesFile){
-            queries.add(Parameters.parseString(String.format("{\"number\":\"%s\", \"text\":\"%s\"}", line[0], line[1])));
+        // stream queries from the query file
+        try (ExpansionMetrics metrics = new ExpansionMetrics(traceFileName);
+             QuerySource queries = QuerySource.open(queryFileName)) {
+            resultWriter = new RunFileWriter(outputFileName, append || journal != null);
+            int index = 0;
+            if (threads <= 1) {
+                while (queries.hasNext()) {
+                    Parameters query = queries.next();
+                    if (!isAssigned(query, index++, journal, submitted))
+                        continue;
+                    write(resultWriter, journal, query.getString("number"), search(retrieval, qe, query, metrics));
+                }
+            } else {
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                try {
+                    // bounded window of in-flight queries, in query-file order
+                    int window = threads * PENDING_PER_THREAD;
+                    Deque<PendingQuery> pending = new ArrayDeque<>(window);
+                    while (queries.hasNext()) {
+                        final Parameters query = queries.next();
+                        if (!isAssigned(query, index++, journal, submitted))
+                            continue;
+                        pending.add(new PendingQuery(query.getString("number"), executor.submit(() -> search(retrieval, qe, query, metrics))));
+                        if (pending.size() >= window) {
+                            write(resultWriter, journal, pending.poll());
+                        }
+                        // print whatever is already finished at the head of the window
+                        while (!pending.isEmpty() && pending.peek().results.isDone()) {
+                            write(resultWriter, journal, pending.poll());
+                        }
+                    }
+                    while (!pending.isEmpty()) {
+                        write(resultWriter, journal, pending.poll());
+                    }
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+            logger.info("Per-query latency:\n" + metrics.summary());
+        } finally {
+            if (resultWriter != null) {
+                resultWriter.close();
+            }
+            if (journal != null) {
+                journal.close();
+            }
         }
+    }
 
-        // open output file
-        ResultWriter resultWriter = new ResultWriter(outputFileName, append);
-
-        // for each query, run it, get the results, print in TREC format
-        for (Parameters query : queries) {
-            String queryNumber = query.getString("number");
-            String queryText = query.getString("text");
-            queryText = queryText.toLowerCase(); // option to fold query cases -- note that some parameters may require upper case
-            
-            logger.info("Processing query #" + queryNumber + ": " + queryText);
-            
-            query.set("requested", requested);
-            query.set("scorer", "dirichlet");
-            query.set("mu", 1000);
-
-            Node root = StructuredQuery.parse(queryText);
-            Node transformed = retrieval.transformQuery(root, query);
-            
-            // Query Expansion
-            if (queryExpansion){
-                // This query expansion technique can be replaced by other approaches.
-                //ExpansionModel qe = new org.lemurproject.galago.core.retrieval.prf.RelevanceModel3(retrieval);
-                ExpansionModel qe = new MixtureFeedbackModel(retrieval);
-
-                try{
-                    query.set("fbOrigWeight", 0.5);
-                    query.set("fbDocs", 10.0);
-                    query.set("fbTerm", 50.0);
-                    query.set("lambda", 0.5);
-                    Node expandedQuery = qe.expand(root.clone(), query.clone());  
-                    transformed = retrieval.transformQuery(expandedQuery, query);
-                } catch (Exception ex){
-                    ex.printStackTrace();
+    private boolean isAssigned(Parameters query, int index, RunJournal journal, Set<String> submitted) {
+        if (index % numShards != shard)
+            return false;
+        if (journal == null)
+            return true;
+        String queryNumber = query.getString("number");
+        if (!submitted.add(queryNumber)) {
+            logger.warning("Skipping duplicate query #" + queryNumber);
+            return false;
+        }
+        return !journal.isCompleted(queryNumber);
+    }
+
+    private void write(RunFileWriter resultWriter, RunJournal journal, PendingQuery query) throws Exception {
+        write(resultWriter, journal, query.queryNumber, getResult(query.results));
+    }
+
+    /**
+     * Writes the results of one query and, when checkpointing, commits them
+     * to the journal once they are completely in the run file.
+     */
+    private void write(RunFileWriter resultWriter, RunJournal journal, String queryNumber, List<ScoredDocument> results) throws Exception {
+        resultWriter.write(queryNumber, results);
+        if (journal != null) {
+            if (checkpointSync) {
+                resultWriter.sync();
+            }
+            journal.commit(queryNumber, resultWriter.size());
+        }
+    }
+
+    public List<ScoredDocument> search(Retrieval retrieval, ExpansionModel qe, Parameters query) throws Exception {
+        return search(retrieval, qe, query, null);
+    }
+
+    /**
+     * Runs a single query, with query expansion when qe is not null, and
+     * records its stage timings into metrics when not null.
+     * Safe to call concurrently for different query objects.
+     */
+    public List<ScoredDocument> search(Retrieval retrieval, ExpansionModel qe, Parameters query, ExpansionMetrics metrics) throws Exception {
+        return search(retrieval, qe, query, metrics, new QueryTrace(query.getString("number")));
+    }
+
+    /**
+     * Same as above, with the stage timings of the query also left in trace.
+     */
+    public List<ScoredDocument> search(Retrieval retrieval, ExpansionModel qe, Parameters query, ExpansionMetrics metrics, QueryTrace trace) throws Exception {
+        String queryNumber = query.getString("number");
+        String queryText = query.getString("text");
+        queryText = queryText.toLowerCase(); // option to fold query cases -- note that some parameters may require upper case
+
+        logger.info("Processing query #" + queryNumber + ": " + queryText);
+        long start = trace.start();
+
+        setRetrievalParameters(query);
+
+        Node root = StructuredQuery.parse(queryText);
+        Node transformed = retrieval.transformQuery(root, query);
+
+        // Query Expansion
+        if (qe != null){
+            try{
+                setDefault(query, "fbOrigWeight", 0.5);
+                setDefault(query, "fbDocs", 10.0);
+                setDefault(query, "fbTerm", 50.0);
+                setDefault(query, "lambda", 0.5);
+                Node expandedQuery;
+                if (qe instanceof MixtureFeedbackModel) {
+                    MixtureFeedbackModel model = (MixtureFeedbackModel) qe;
+                    ExpansionContext ctx = new ExpansionContext(root.clone(), query.clone(), trace);
+                    expandedQuery = model.expand(ctx);
+                    // two-phase execution: score the expanded query on a candidate pool only
+                    List<String> candidates = model.collectCandidates(ctx);
+                    if (candidates != null) {
+                        query.set("working", candidates);
+                    }
+                } else {
+                    expandedQuery = qe.expand(root.clone(), query.clone());
                 }
+                transformed = retrieval.transformQuery(expandedQuery, query);
+            } catch (Exception ex){
+                ex.printStackTrace();
             }
-//            System.err.println(transformed.toPrettyString()); // This can be used to print the final query in the Galago language.
-            // run query
-            List<ScoredDocument> results = retrieval.executeQuery(transformed, query).scoredDocuments;
-            
-            // print results
-            resultWriter.write(queryNumber, results);
         }
-        resultWriter.close();
+//        System.err.println(transformed.toPrettyString()); // This can be used to print the final query in the Galago language.
+        // run query
+        long finalStart = trace.start();
+        List<ScoredDocument> results = retrieval.executeQuery(transformed, query).scoredDocuments;
+        trace.stop(QueryTrace.Stage.FINAL_RETRIEVAL, finalStart);
+        trace.stop(QueryTrace.Stage.TOTAL, start);
+        if (metrics != null) {
+            metrics.record(trace);
+        }
+        return results;
+    }
+
+    /**
+     * Sets the ranking parameters shared by every run, the number of
+     * documents and the scorer, unless the query sets them itself.
+     */
+    static void setRetrievalParameters(Parameters query) {
+        long requested = 1000; // number of documents to retrieve
+        if (!query.containsKey("requested"))
+            query.set("requested", requested);
+        if (!query.containsKey("scorer"))
+            query.set("scorer", "dirichlet");
+        if (!query.containsKey("mu"))
+            query.set("mu", 1000L);
+    }
+
+    private static void setDefault(Parameters query, String key, double value) {
+        if (!query.containsKey(key))
+            query.set(key, value);
+    }
+
+    private static class PendingQuery {
+        final String queryNumber;
+        final Future<List<ScoredDocument>> results;
+
+        PendingQuery(String queryNumber, Future<List<ScoredDocument>> results) {
+            this.queryNumber = queryNumber;
+            this.results = results;
+        }
     }
 
-    public static Reader getFile(String path) {
+    private static <T> T getResult(Future<T> future) throws Exception {
         try {
-            InputStreamReader reader = new InputStreamReader(new FileInputStream(path));
-            return reader;
-        } catch (FileNotFoundException e) {
-            //
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw ex;
         }
-        return null;
     }
 }
@@ -0,0 +1,98 @@
+package edu.umass.cs.cs646;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.lemurproject.galago.core.retrieval.ScoredDocument;
+import org.tukaani.xz.XZInputStream;
+
+/**
+ * Reads run files written by {@link RunFileWriter} in the binary format,
+ * one query at a time.
+ */
+public class BinaryRunReader implements Closeable {
+    private final DataInputStream in;
+    private String queryNumber;
+    private List<ScoredDocument> results;
+
+    public BinaryRunReader(InputStream stream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+        readHeader();
+    }
+
+    public static BinaryRunReader open(String fileName) throws IOException {
+        InputStream stream = new FileInputStream(fileName);
+        switch (RunFileWriter.Compression.forFileName(fileName)) {
+            case GZIP:
+                stream = new GZIPInputStream(stream, 64 * 1024);
+                break;
+            case XZ:
+                stream = new XZInputStream(stream);
+                break;
+            default:
+        }
+        return new BinaryRunReader(stream);
+    }
+
+    private void readHeader() throws IOException {
+        if (in.readInt() != RunFileWriter.BINARY_MAGIC)
+            throw new IOException("Not a binary run file");
+        int version = in.readInt();
+        if (version != RunFileWriter.BINARY_VERSION)
+            throw new IOException("Unsupported binary run version: " + version);
+    }
+
+    /**
+     * Advances to the next query.
+     *
+     * @return false at the end of the file
+     */
+    public boolean next() throws IOException {
+        String number;
+        try {
+            number = readString();
+        } catch (EOFException ex) {
+            queryNumber = null;
+            results = null;
+            return false;
+        }
+        int count = in.readInt();
+        List<ScoredDocument> docs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = readString();
+            int rank = in.readInt();
+            double score = Double.longBitsToDouble(in.readLong());
+            docs.add(new ScoredDocument(name, rank, score));
+        }
+        queryNumber = number;
+        results = docs;
+        return true;
+    }
+
+    public String getQueryNumber() {
+        return queryNumber;
+    }
+
+    public List<ScoredDocument> getResults() {
+        return results;
+    }
+
+    private String readString() throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
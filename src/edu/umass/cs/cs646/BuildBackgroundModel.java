@@ -0,0 +1,84 @@
+package edu.umass.cs.cs646;
+
+import gnu.trove.list.array.TLongArrayList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import org.lemurproject.galago.core.index.AggregateReader;
+import org.lemurproject.galago.core.index.IndexPartReader;
+import org.lemurproject.galago.core.index.KeyIterator;
+import org.lemurproject.galago.core.index.stats.FieldStatistics;
+import org.lemurproject.galago.core.retrieval.LocalRetrieval;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.RetrievalFactory;
+import org.lemurproject.galago.core.retrieval.iterator.BaseIterator;
+import org.lemurproject.galago.core.retrieval.query.Node;
+import org.lemurproject.galago.core.retrieval.query.StructuredQuery;
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * Dumps the term to collection frequency table of an index part into a
+ * {@link BackgroundModelFile}. Pass the file to BatchSearch with the global
+ * parameter "backgroundModel".
+ *
+ * Usage: BuildBackgroundModel indexPath outputFile [part]
+ *
+ * The part defaults to the one transformQuery assigns to term counts (see
+ * {@link BackgroundModelFile#getQueryPart}), which is what the statistics
+ * lookups of {@link CollectionStatsCache} read; its keys have to be in the
+ * same form as the feedback terms. The part is recorded in the file and
+ * checked by {@link BackgroundModel#open}.
+ */
+public class BuildBackgroundModel {
+    private static final Logger logger = Logger.getLogger("BuildBackgroundModel");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: BuildBackgroundModel indexPath outputFile [part]");
+            System.exit(1);
+        }
+        build(args[0], args[1], (args.length > 2) ? args[2] : null);
+    }
+
+    /**
+     * @param part index part to dump, or null for the one queries count terms in
+     */
+    public static void build(String indexPath, String outputFileName, String part) throws Exception {
+        Retrieval retrieval = RetrievalFactory.instance(indexPath, Parameters.create());
+        if (!(retrieval instanceof LocalRetrieval))
+            throw new IllegalArgumentException("Not a local index: " + indexPath);
+        if (part == null) {
+            part = BackgroundModelFile.getQueryPart(retrieval);
+            if (part == null)
+                part = "postings";
+        }
+        FieldStatistics fieldStats = retrieval.getCollectionStatistics(StructuredQuery.parse("#lengths:document:part=lengths()"));
+
+        List<String> terms = new ArrayList<>();
+        TLongArrayList frequencies = new TLongArrayList();
+        IndexPartReader reader = ((LocalRetrieval) retrieval).getIndex().getIndexPart(part);
+        if (reader == null)
+            throw new IllegalArgumentException("No such index part: " + part);
+        KeyIterator keys = reader.getIterator();
+        while (!keys.isDone()) {
+            String term = keys.getKeyString();
+            BaseIterator values = keys.getValueIterator();
+            long cf;
+            if (values instanceof AggregateReader.NodeAggregateIterator) {
+                cf = ((AggregateReader.NodeAggregateIterator) values).getStatistics().nodeFrequency;
+            } else {
+                // parts without aggregate statistics: ask the retrieval
+                Node node = new Node("counts", term);
+                node.getNodeParameters().set("part", part);
+                cf = retrieval.getNodeStatistics(retrieval.transformQuery(node, Parameters.create())).nodeFrequency;
+            }
+            terms.add(term);
+            frequencies.add(cf);
+            keys.nextKey();
+        }
+        retrieval.close();
+
+        BackgroundModelFile.write(outputFileName, part, fieldStats.collectionLength, terms, frequencies.toArray());
+        logger.info("Wrote " + terms.size() + " terms of " + indexPath + "/" + part + " to " + outputFileName);
+    }
+}
@@ -0,0 +1,126 @@
+package edu.umass.cs.cs646;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import org.lemurproject.galago.core.index.stats.FieldStatistics;
+import org.lemurproject.galago.core.index.stats.NodeStatistics;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.query.Node;
+import org.lemurproject.galago.core.retrieval.query.StructuredQuery;
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * Bounded cache of collection term frequencies for one {@link Retrieval}.
+ *
+ * The collection length is read once at construction. The cached entries
+ * of a request are served together; every missing term is then read from
+ * the index with its own count query, since Galago has no batched
+ * statistics lookup. A term is read at most once at a time: concurrent
+ * queries that miss the same term wait for the first one's read. Instances
+ * are thread-safe and meant to be shared by all queries.
+ */
+public class CollectionStatsCache implements BackgroundModel {
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000000;
+
+    private final Retrieval retrieval;
+    private final Cache<String, Long> frequencies;
+    private final long collectionLength;
+    private final LongAdder requests = new LongAdder();
+    // terms read from the index
+    private final LongAdder misses = new LongAdder();
+
+    public CollectionStatsCache(Retrieval r) throws Exception {
+        this(r, r.getGlobalParameters().get("statsCacheSize", DEFAULT_MAXIMUM_SIZE));
+    }
+
+    public CollectionStatsCache(Retrieval r, long maximumSize) throws Exception {
+        retrieval = r;
+        // Caffeine evicts with Window TinyLFU once maximumSize is reached
+        frequencies = Caffeine.newBuilder().maximumSize(maximumSize).build();
+
+        Node fieldNode = StructuredQuery.parse("#lengths:document:part=lengths()");
+        FieldStatistics fieldStats = retrieval.getCollectionStatistics(fieldNode);
+        collectionLength = fieldStats.collectionLength;
+    }
+
+    @Override
+    public long getCollectionLength() {
+        return collectionLength;
+    }
+
+    public long getCollectionFrequency(String term) throws Exception {
+        return getCollectionFrequencies(new String[]{term})[0];
+    }
+
+    public long[] getCollectionFrequencies(String[] terms) throws Exception {
+        Map<String, Long> present = frequencies.getAllPresent(Arrays.asList(terms));
+        requests.add(terms.length);
+
+        long[] res = new long[terms.length];
+        try {
+            for (int i = 0; i < terms.length; i++) {
+                Long cf = present.get(terms[i]);
+                res[i] = (cf != null) ? cf : frequencies.get(terms[i], this::fetch);
+            }
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof Exception)
+                throw (Exception) ex.getCause();
+            throw ex;
+        }
+        return res;
+    }
+
+    @Override
+    public double[] getProbabilities(String[] terms) throws Exception {
+        long[] cfs = getCollectionFrequencies(terms);
+        double[] res = new double[cfs.length];
+        for (int i = 0; i < cfs.length; i++) {
+            res[i] = (double) cfs[i] / collectionLength;
+        }
+        return res;
+    }
+
+    /**
+     * Reads the collection frequency of term from the index; run by the
+     * cache, once per missing term.
+     */
+    private Long fetch(String term) {
+        misses.increment();
+        try {
+            Node node = StructuredQuery.parse(term);
+            node.getNodeParameters().set("queryType", "count");
+            node = retrieval.transformQuery(node, Parameters.create());
+            NodeStatistics stat = retrieval.getNodeStatistics(node);
+            return stat.nodeFrequency;
+        } catch (Exception ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    public long getHitCount() {
+        return requests.sum() - misses.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        long requests = getHitCount() + getMissCount();
+        return (requests == 0) ? 0.0 : (double) getHitCount() / requests;
+    }
+
+    public long size() {
+        return frequencies.estimatedSize();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CollectionStatsCache[size=%d, hits=%d, misses=%d, hitRate=%.4f]",
+                size(), getHitCount(), getMissCount(), getHitRate());
+    }
+}
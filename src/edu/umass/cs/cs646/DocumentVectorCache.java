@@ -0,0 +1,226 @@
+package edu.umass.cs.cs646;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import org.lemurproject.galago.core.parse.Document;
+import org.lemurproject.galago.core.retrieval.GroupRetrieval;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * Bounded cache of per-document term-count vectors, shared across queries.
+ *
+ * Entries are keyed by index identity, retrieval group and document name,
+ * and weighed by their approximate heap footprint so the bound is in bytes
+ * rather than documents.
+ */
+public class DocumentVectorCache {
+    public static final long DEFAULT_MAXIMUM_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Distinct terms of one document, in order of first occurrence, with
+     * their counts.
+     */
+    public static class DocumentVector {
+        final String[] terms;
+        final int[] counts;
+        final int length;
+        final long textLength;
+
+        DocumentVector(String[] terms, int[] counts, int length, long textLength) {
+            this.terms = terms;
+            this.counts = counts;
+            this.length = length;
+            this.textLength = textLength;
+        }
+
+        public static DocumentVector of(Document doc) {
+            TObjectIntHashMap<String> ids = new TObjectIntHashMap<>(256, 0.5f, -1);
+            List<String> terms = new ArrayList<>();
+            TIntArrayList counts = new TIntArrayList();
+            for (String term : doc.terms) {
+                int id = ids.get(term);
+                if (id < 0) {
+                    ids.put(term, terms.size());
+                    terms.add(term);
+                    counts.add(1);
+                } else {
+                    counts.setQuick(id, counts.getQuick(id) + 1);
+                }
+            }
+            long textLength;
+            if (doc.text != null) {
+                textLength = doc.text.length();
+            } else {
+                // terms only: estimate from the tokens
+                textLength = doc.terms.size();
+                for (int i = 0; i < terms.size(); i++) {
+                    textLength += (long) terms.get(i).length() * counts.getQuick(i);
+                }
+            }
+            return new DocumentVector(terms.toArray(new String[terms.size()]), counts.toArray(), doc.terms.size(), textLength);
+        }
+
+        public int size() {
+            return terms.length;
+        }
+
+        public String getTerm(int i) {
+            return terms[i];
+        }
+
+        public int getCount(int i) {
+            return counts[i];
+        }
+
+        /**
+         * @return number of tokens in the document
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return length of the raw text the vector was built from, or an
+         * estimate from the tokens if the text was not fetched
+         */
+        public long getTextLength() {
+            return textLength;
+        }
+
+        int weight() {
+            long bytes = 64 + 4L * counts.length;
+            for (String term : terms) {
+                bytes += 48 + 2L * term.length();
+            }
+            return (int) Math.min(Integer.MAX_VALUE, bytes);
+        }
+    }
+
+    private static class Key {
+        final Retrieval index;
+        final String group;
+        final String name;
+
+        Key(Retrieval index, String group, String name) {
+            this.index = index;
+            this.group = group;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key that = (Key) o;
+            return index == that.index && name.equals(that.name)
+                    && (group == null ? that.group == null : group.equals(that.group));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = System.identityHashCode(index);
+            h = 31 * h + (group == null ? 0 : group.hashCode());
+            return 31 * h + name.hashCode();
+        }
+    }
+
+    private final Cache<Key, DocumentVector> vectors;
+    private final boolean termsOnly;
+
+    public DocumentVectorCache(Parameters globalParameters) {
+        this(globalParameters.get("docCacheBytes", DEFAULT_MAXIMUM_BYTES), globalParameters.get("fbTermsOnly", false));
+    }
+
+    /**
+     * @param maximumBytes approximate bound on the heap used by cached vectors
+     * @param termsOnly if true, documents are fetched as tokenized terms
+     * only, without returning the raw text; the corpus is still read and
+     * tokenized, since Galago indexes keep no forward index to read instead
+     */
+    public DocumentVectorCache(long maximumBytes, boolean termsOnly) {
+        this.termsOnly = termsOnly;
+        vectors = Caffeine.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((Key k, DocumentVector v) -> v.weight())
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return the vector of the named document, or null if it cannot be fetched
+     */
+    public DocumentVector get(Retrieval retrieval, String documentName, String group) throws IOException {
+        return get(retrieval, documentName, group, null);
+    }
+
+    /**
+     * @param fetched if not null, incremented by the bytes read from the index
+     * when the document is not cached
+     * @return the vector of the named document, or null if it cannot be fetched
+     */
+    public DocumentVector get(Retrieval retrieval, String documentName, String group, LongAdder fetched) throws IOException {
+        try {
+            return vectors.get(new Key(retrieval, group, documentName), k -> {
+                try {
+                    DocumentVector v = load(retrieval, documentName, group, termsOnly);
+                    if (v != null && fetched != null)
+                        fetched.add(v.getTextLength());
+                    return v;
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Fetches a document from the index and counts its terms, bypassing any cache.
+     *
+     * @param termsOnly if true, the raw text is not returned with the terms
+     *
+     * @return the document vector, or null if the document cannot be fetched
+     */
+    public static DocumentVector load(Retrieval retrieval, String documentName, String group, boolean termsOnly) throws IOException {
+        Document.DocumentComponents corpusParams = new Document.DocumentComponents(!termsOnly, false, true);
+        Document doc;
+        if (group != null && retrieval instanceof GroupRetrieval) {
+            doc = ((GroupRetrieval) retrieval).getDocument(documentName, corpusParams, group);
+        } else {
+            doc = retrieval.getDocument(documentName, corpusParams);
+        }
+        if (doc == null || doc.terms == null) {
+            return null;
+        }
+        return DocumentVector.of(doc);
+    }
+
+    public boolean isTermsOnly() {
+        return termsOnly;
+    }
+
+    public CacheStats stats() {
+        return vectors.stats();
+    }
+
+    public long size() {
+        return vectors.estimatedSize();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = stats();
+        return String.format("DocumentVectorCache[size=%d, hits=%d, misses=%d, hitRate=%.4f, evictions=%d]",
+                size(), stats.hitCount(), stats.missCount(), stats.hitRate(), stats.evictionCount());
+    }
+}
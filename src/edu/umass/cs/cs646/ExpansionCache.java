@@ -0,0 +1,213 @@
+package edu.umass.cs.cs646;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.lemurproject.galago.core.index.stats.FieldStatistics;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.prf.WeightedTerm;
+import org.lemurproject.galago.core.retrieval.query.StructuredQuery;
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * Cache of final expansion term lists, so repeated queries skip the initial
+ * retrieval, feedback extraction and EM.
+ *
+ * Keys are built by {@link MixtureFeedbackModel} from the parsed query and
+ * every parameter that changes the expansion, and are prefixed with an index
+ * version. The in-memory tier is bounded by entry count and optionally by
+ * age. The optional on-disk tier is an append-only TSV file that is loaded
+ * (and compacted) on open, so a warm restart starts with every known
+ * expansion.
+ */
+public class ExpansionCache implements Closeable {
+    private static final Logger logger = Logger.getLogger("ExpansionCache");
+    public static final long DEFAULT_MAXIMUM_SIZE = 100000;
+
+    private static class Entry {
+        final String[] terms;
+        final double[] weights;
+        final long created;
+
+        Entry(String[] terms, double[] weights, long created) {
+            this.terms = terms;
+            this.weights = weights;
+            this.created = created;
+        }
+    }
+
+    private final String indexVersion;
+    private final Cache<String, Entry> entries;
+    private final long ttlMillis;
+    private Writer persistent;
+
+    /**
+     * Reads "expansionCacheSize", "expansionCacheTtl" (seconds, 0 for none)
+     * and "expansionCacheFile" (optional) from the global parameters.
+     */
+    public ExpansionCache(Retrieval r) throws Exception {
+        this(indexVersion(r),
+                r.getGlobalParameters().get("expansionCacheSize", DEFAULT_MAXIMUM_SIZE),
+                r.getGlobalParameters().get("expansionCacheTtl", 0L),
+                r.getGlobalParameters().get("expansionCacheFile", (String) null));
+    }
+
+    /**
+     * @return the cache configured by the global parameters if
+     * "expansionCache" is true, null otherwise (the default)
+     */
+    public static ExpansionCache open(Retrieval r) throws Exception {
+        if (!r.getGlobalParameters().get("expansionCache", false))
+            return null;
+        return new ExpansionCache(r);
+    }
+
+    /**
+     * @param ttlSeconds maximum age of an entry, 0 for no limit
+     * @param persistentFile on-disk tier, or null for memory only
+     */
+    public ExpansionCache(String indexVersion, long maximumSize, long ttlSeconds, String persistentFile) throws IOException {
+        this.indexVersion = indexVersion;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        Caffeine<Object, Object> builder = Caffeine.newBuilder().maximumSize(maximumSize).recordStats();
+        if (ttlSeconds > 0)
+            builder.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS);
+        entries = builder.build();
+        if (persistentFile != null)
+            openPersistent(Paths.get(persistentFile));
+    }
+
+    /**
+     * @return a string that changes whenever the index content changes
+     */
+    public static String indexVersion(Retrieval r) throws Exception {
+        FieldStatistics stats = r.getCollectionStatistics(StructuredQuery.parse("#lengths:document:part=lengths()"));
+        Parameters global = r.getGlobalParameters();
+        String index = global.isString("index") ? global.getString("index") : "";
+        return index + ":" + stats.documentCount + ":" + stats.collectionLength;
+    }
+
+    /**
+     * @return the cached terms, best first, or null on a miss
+     */
+    public List<WeightedTerm> get(String key) {
+        Entry e = entries.getIfPresent(indexVersion + "|" + key);
+        if (e == null)
+            return null;
+        List<WeightedTerm> res = new ArrayList<>(e.terms.length);
+        for (int i = 0; i < e.terms.length; i++) {
+            res.add(new WeightedUnigram(e.terms[i], e.weights[i]));
+        }
+        return res;
+    }
+
+    public void put(String key, List<WeightedTerm> weightedTerms) throws IOException {
+        String[] terms = new String[weightedTerms.size()];
+        double[] weights = new double[weightedTerms.size()];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = weightedTerms.get(i).getTerm();
+            weights[i] = weightedTerms.get(i).getWeight();
+        }
+        String fullKey = indexVersion + "|" + key;
+        Entry e = new Entry(terms, weights, System.currentTimeMillis());
+        entries.put(fullKey, e);
+        if (persistent != null) {
+            String line = format(fullKey, e);
+            synchronized (this) {
+                if (persistent != null) {
+                    persistent.write(line);
+                    persistent.flush();
+                }
+            }
+        }
+    }
+
+    private void openPersistent(Path file) throws IOException {
+        // last line wins for a key; expired entries and other index versions are dropped
+        Map<String, Entry> live = new LinkedHashMap<>();
+        if (Files.exists(file)) {
+            long now = System.currentTimeMillis();
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length < 3 || !fields[0].startsWith(indexVersion + "|"))
+                        continue;
+                    try {
+                        int n = Integer.parseInt(fields[2]);
+                        if (fields.length != 3 + 2 * n)
+                            continue;
+                        long created = Long.parseLong(fields[1]);
+                        if (ttlMillis > 0 && now - created > ttlMillis)
+                            continue;
+                        String[] terms = new String[n];
+                        double[] weights = new double[n];
+                        for (int i = 0; i < n; i++) {
+                            terms[i] = fields[3 + 2 * i];
+                            weights[i] = Double.parseDouble(fields[4 + 2 * i]);
+                        }
+                        live.remove(fields[0]);
+                        live.put(fields[0], new Entry(terms, weights, created));
+                    } catch (NumberFormatException ex) {
+                        // truncated or corrupt line
+                    }
+                }
+            }
+        }
+        Path tmp = Paths.get(file.toString() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : live.entrySet()) {
+                out.write(format(e.getKey(), e.getValue()));
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        entries.putAll(live);
+        logger.info("Loaded " + live.size() + " expansions from " + file);
+        persistent = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private static String format(String key, Entry e) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(key.replace('\t', ' ').replace('\n', ' '));
+        sb.append('\t').append(e.created).append('\t').append(e.terms.length);
+        for (int i = 0; i < e.terms.length; i++) {
+            sb.append('\t').append(e.terms[i]).append('\t').append(e.weights[i]);
+        }
+        return sb.append('\n').toString();
+    }
+
+    public CacheStats stats() {
+        return entries.stats();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (persistent != null) {
+            persistent.close();
+            persistent = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = stats();
+        return String.format("ExpansionCache[size=%d, hits=%d, misses=%d, hitRate=%.4f]",
+                entries.estimatedSize(), stats.hitCount(), stats.missCount(), stats.hitRate());
+    }
+}
@@ -0,0 +1,112 @@
+package edu.umass.cs.cs646;
+
+import java.util.List;
+import java.util.Set;
+import org.lemurproject.galago.core.retrieval.ScoredDocument;
+import org.lemurproject.galago.core.retrieval.prf.WeightedTerm;
+import org.lemurproject.galago.core.retrieval.query.Node;
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * Per-query state of one {@link MixtureFeedbackModel#expand(ExpansionContext)}
+ * call. The model itself holds no per-query state, so a single model can
+ * serve any number of queries and threads; each call works on its own
+ * context, which stays readable afterwards.
+ */
+public class ExpansionContext {
+    final Node root;
+    final Parameters queryParameters;
+    final QueryTrace trace;
+
+    Parameters fbParams;
+    Node transformed;
+    int fbTerms;
+    List<ScoredDocument> initialResults;
+    Set<String> queryTerms;
+    FeedbackData feedbackData;
+    List<WeightedTerm> weightedTerms;
+    int expansionTerms;
+    Node expansionNode;
+    Node expandedQuery;
+    List<String> candidates;
+
+    public ExpansionContext(Node root, Parameters queryParameters) {
+        this(root, queryParameters, new QueryTrace(queryParameters.get("number", "")));
+    }
+
+    public ExpansionContext(Node root, Parameters queryParameters, QueryTrace trace) {
+        this.root = root;
+        this.queryParameters = queryParameters;
+        this.trace = trace;
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    public Parameters getQueryParameters() {
+        return queryParameters;
+    }
+
+    public QueryTrace getTrace() {
+        return trace;
+    }
+
+    public Parameters getFbParameters() {
+        return fbParams;
+    }
+
+    public int getFbTermCount() {
+        return fbTerms;
+    }
+
+    /**
+     * @return the initial results, at least fbDocs of them; null when the
+     * expansion came from the expansion cache and no candidates were collected
+     */
+    public List<ScoredDocument> getInitialResults() {
+        return initialResults;
+    }
+
+    public Set<String> getQueryTerms() {
+        return queryTerms;
+    }
+
+    public FeedbackData getFeedbackData() {
+        return feedbackData;
+    }
+
+    /**
+     * @return the fbTerm best weighted feedback terms, best first
+     */
+    public List<WeightedTerm> getWeightedTerms() {
+        return weightedTerms;
+    }
+
+    /**
+     * @return number of weighted terms in the expansion node, after the
+     * weight-mass cutoff
+     */
+    public int getExpansionTermCount() {
+        return expansionTerms;
+    }
+
+    /**
+     * @return the #combine of expansion terms, before interpolation with the root
+     */
+    public Node getExpansionNode() {
+        return expansionNode;
+    }
+
+    public Node getExpandedQuery() {
+        return expandedQuery;
+    }
+
+    /**
+     * @return names of the documents the expanded query is scored on, or
+     * null if it runs over the whole index
+     */
+    public List<String> getCandidates() {
+        return candidates;
+    }
+}
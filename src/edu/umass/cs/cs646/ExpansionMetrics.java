@@ -0,0 +1,91 @@
+package edu.umass.cs.cs646;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Run-level aggregation of {@link QueryTrace}s: one latency histogram per
+ * stage plus distributions of EM iterations, vocabulary size before and
+ * after pruning and bytes fetched, and an optional per-query JSONL trace
+ * file. Thread-safe.
+ */
+public class ExpansionMetrics implements Closeable {
+    private final LatencyHistogram[] stages = new LatencyHistogram[QueryTrace.Stage.values().length];
+    private final LatencyHistogram emIterations = new LatencyHistogram();
+    private final LatencyHistogram vocabularySize = new LatencyHistogram();
+    private final LatencyHistogram emTerms = new LatencyHistogram();
+    private final LatencyHistogram bytesFetched = new LatencyHistogram();
+    private Writer trace;
+
+    public ExpansionMetrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param traceFileName file receiving one JSON object per query, or null for none
+     */
+    public ExpansionMetrics(String traceFileName) throws IOException {
+        this();
+        if (traceFileName != null) {
+            trace = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(Paths.get(traceFileName)), StandardCharsets.UTF_8));
+        }
+    }
+
+    public void record(QueryTrace t) throws IOException {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i].record(t.nanos[i]);
+        }
+        emIterations.record(t.emIterations);
+        vocabularySize.record(t.vocabularySize);
+        emTerms.record(t.emTerms);
+        bytesFetched.record(t.bytesFetched);
+        if (trace != null) {
+            String line = t.toParameters().toString();
+            synchronized (this) {
+                trace.write(line);
+                trace.write('\n');
+            }
+        }
+    }
+
+    public LatencyHistogram getStage(QueryTrace.Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-18s %8s %10s %10s %10s %10s %10s%n", "stage (ms)", "count", "mean", "p50", "p90", "p99", "max"));
+        for (QueryTrace.Stage stage : QueryTrace.Stage.values()) {
+            LatencyHistogram h = stages[stage.ordinal()];
+            sb.append(String.format("%-18s %8d %10.3f %10.3f %10.3f %10.3f %10.3f%n", stage.key, h.getCount(),
+                    h.getMean() / 1e6, h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(90) / 1e6,
+                    h.getValueAtPercentile(99) / 1e6, h.getMax() / 1e6));
+        }
+        appendDistribution(sb, "emIterations", emIterations);
+        appendDistribution(sb, "vocabularySize", vocabularySize);
+        appendDistribution(sb, "emTerms", emTerms);
+        appendDistribution(sb, "bytesFetched", bytesFetched);
+        return sb.toString();
+    }
+
+    private static void appendDistribution(StringBuilder sb, String name, LatencyHistogram h) {
+        sb.append(String.format("%-18s %8d %10.1f %10d %10d %10d %10d%n", name, h.getCount(), h.getMean(),
+                h.getValueAtPercentile(50), h.getValueAtPercentile(90), h.getValueAtPercentile(99), h.getMax()));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (trace != null) {
+            trace.close();
+            trace = null;
+        }
+    }
+}
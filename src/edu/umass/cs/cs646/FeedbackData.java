@@ -1,14 +1,25 @@
 package edu.umass.cs.cs646;
 
+import edu.umass.cs.cs646.DocumentVectorCache.DocumentVector;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
-import org.lemurproject.galago.core.parse.Document;
 import org.lemurproject.galago.core.parse.stem.Stemmer;
-import org.lemurproject.galago.core.retrieval.GroupRetrieval;
 import org.lemurproject.galago.core.retrieval.Retrieval;
 import org.lemurproject.galago.core.retrieval.ScoredDocument;
 import org.lemurproject.galago.core.retrieval.query.AnnotatedNode;
@@ -20,105 +31,458 @@ import org.lemurproject.galago.utility.Parameters;
  */
 public class FeedbackData {
     private static final Logger logger = Logger.getLogger("FeedbackData");
+    // resolved stemmer constructors by class name
+    private static final Map<String, Constructor<? extends Stemmer>> stemmerConstructors = new ConcurrentHashMap<>();
+    // documents fetched ahead of the one being counted in streaming mode
+    static final int STREAM_FETCH_WINDOW = 32;
     Parameters fbParams;
     List <ScoredDocument> initialResults;
-    Set<String> stemmedQueryTerms;
     Retrieval retrieval;
     Set<String> exclusionTerms;
+    DocumentVectorCache documentCache;
+    Stemmer stemmer;
+    // fetches feedback documents concurrently when not null
+    ExecutorService fetchPool;
+    // only aggregated counts are kept, see fbStreaming
+    boolean streaming;
+    int numSpills;
     
     Map <ScoredDocument, Integer> docLength;
-    Map<String, Map<ScoredDocument, Integer>> termCounts;
-    Map<ScoredDocument, Map<String, Integer>> termCountsReverse;
+    // approximate bytes read from the index, excluding cache hits
+    long bytesFetched;
+    
+    // per-query term dictionary
+    TObjectIntHashMap<String> termIds;
+    String[] terms;
+    int numTerms;
+    // precomputed per-term totals over all feedback documents
+    int[] termTotals;
+    int[] termDocFreqs;
+    
+    // doc x term counts in CSR layout: the entries of the i-th document are
+    // docTermIds/docTermCounts[docOffsets[i] .. docOffsets[i+1])
+    List<ScoredDocument> documents;
+    // position of each document in initialResults
+    int[] docResultIndex;
+    int[] docOffsets;
+    int[] docTermIds;
+    int[] docTermCounts;
+    
+    // map views, only built on request
+    private Map<String, Map<ScoredDocument, Integer>> termCounts;
+    private Map<ScoredDocument, Map<String, Integer>> termCountsReverse;
     
     public FeedbackData(Retrieval r, Set<String> exclusionTerms, List<ScoredDocument> results, Parameters fbParams) throws IOException{
+        this(r, exclusionTerms, results, fbParams, null);
+    }
+    
+    /**
+     * @param documentCache shared cache of document vectors, or null to fetch
+     * every document from the index
+     */
+    public FeedbackData(Retrieval r, Set<String> exclusionTerms, List<ScoredDocument> results, Parameters fbParams, DocumentVectorCache documentCache) throws IOException{
+        this(r, exclusionTerms, results, fbParams, documentCache, getStemmer(null, r));
+    }
+    
+    /**
+     * @param stemmer stemmer owned by the calling thread, or null; terms are
+     * counted by their stem when fbParams sets "fbStemTerms"
+     */
+    public FeedbackData(Retrieval r, Set<String> exclusionTerms, List<ScoredDocument> results, Parameters fbParams, DocumentVectorCache documentCache, Stemmer stemmer) throws IOException{
+        this(r, exclusionTerms, results, fbParams, documentCache, stemmer, null);
+    }
+    
+    /**
+     * @param fetchPool pool that fetches the feedback documents concurrently,
+     * or null to fetch them one by one on the calling thread. Either way the
+     * documents are merged in rank order, so the result does not depend on it.
+     *
+     * When fbParams sets "fbStreaming", every document is counted as soon as
+     * it is fetched and dropped right after, with at most a small window of
+     * documents in memory, and only the per-term totals and document
+     * frequencies are kept. The documents bypass the document cache, so
+     * they neither count against it nor evict the documents of other
+     * queries. The term dictionary is bounded by "fbMemoryBudget" bytes,
+     * beyond which counts are spilled to files in "fbSpillDir" and merged at
+     * the end. Without per-document records, {@link #prefix},
+     * {@link #getDocument}, {@link #getDocLength}, {@link #getTermCounts}
+     * and {@link #getTermCountsReverse} are not available.
+     */
+    public FeedbackData(Retrieval r, Set<String> exclusionTerms, List<ScoredDocument> results, Parameters fbParams, DocumentVectorCache documentCache, Stemmer stemmer, ExecutorService fetchPool) throws IOException{
         this.initialResults = results;
+        this.stemmer = stemmer;
+        this.fetchPool = fetchPool;
+        this.documentCache = documentCache;
         this.fbParams = fbParams;
         this.retrieval = r;
         this.exclusionTerms = exclusionTerms;
+        this.streaming = fbParams.get("fbStreaming", false);
         
         docLength = new HashMap <> ();
-        termCounts = new HashMap <> ();
-        termCountsReverse = new HashMap<>();
-        process();
+        documents = new ArrayList<>(results.size());
+        if (streaming) {
+            processStreaming();
+        } else {
+            process();
+        }
+    }
+    
+    /**
+     * View of the first numResults initial results of parent.
+     */
+    private FeedbackData(FeedbackData parent, int numResults) {
+        this.initialResults = parent.initialResults.subList(0, Math.min(numResults, parent.initialResults.size()));
+        this.stemmer = parent.stemmer;
+        this.documentCache = parent.documentCache;
+        this.fbParams = parent.fbParams;
+        this.retrieval = parent.retrieval;
+        this.exclusionTerms = parent.exclusionTerms;
+        
+        int numDocs = 0;
+        while (numDocs < parent.documents.size() && parent.docResultIndex[numDocs] < numResults) {
+            numDocs++;
+        }
+        documents = new ArrayList<>(parent.documents.subList(0, numDocs));
+        docResultIndex = Arrays.copyOf(parent.docResultIndex, numDocs);
+        docOffsets = Arrays.copyOf(parent.docOffsets, numDocs + 1);
+        docTermIds = Arrays.copyOf(parent.docTermIds, docOffsets[numDocs]);
+        docTermCounts = Arrays.copyOf(parent.docTermCounts, docOffsets[numDocs]);
+        docLength = new HashMap<>();
+        for (ScoredDocument sd : documents) {
+            docLength.put(sd, parent.docLength.get(sd));
+        }
+        
+        // ids are assigned in order of first occurrence, so the terms of a
+        // prefix of the documents are a prefix of the ids
+        for (int id : docTermIds) {
+            numTerms = Math.max(numTerms, id + 1);
+        }
+        terms = Arrays.copyOf(parent.terms, numTerms);
+        termIds = new TObjectIntHashMap<>(Math.max(16, numTerms * 2), 0.5f, -1);
+        for (int id = 0; id < numTerms; id++) {
+            termIds.put(terms[id], id);
+        }
+        computeTotals();
+    }
+    
+    /**
+     * @return the feedback data of the first numResults initial results, as
+     * if built from them alone, without fetching anything
+     */
+    public FeedbackData prefix(int numResults) {
+        checkDocumentCounts();
+        return new FeedbackData(this, numResults);
     }
 
     
     private void process() throws IOException {
-        Stemmer stemmer = getStemmer(null, retrieval);
-
-        Map<ScoredDocument, Integer> termCount;
-        Document doc;
-
-        Document.DocumentComponents corpusParams = new Document.DocumentComponents(true, false, true);
+        DocumentVector doc;
 
         String group = fbParams.get("group", (String) null);
+        LongAdder fetched = new LongAdder();
+        DocumentVector[] vectors = fetchAll(group, fetched);
 
-        for (ScoredDocument sd : initialResults) {
-            if (group != null && retrieval instanceof GroupRetrieval) {
-                doc = ((GroupRetrieval) retrieval).getDocument(sd.documentName, corpusParams, group);
-            } else {
-                doc = retrieval.getDocument(sd.documentName, corpusParams);
-            }
+        TIntArrayList resultIndex = new TIntArrayList(initialResults.size());
+        TIntArrayList offsets = new TIntArrayList(initialResults.size() + 1);
+        TIntArrayList ids = new TIntArrayList();
+        TIntArrayList counts = new TIntArrayList();
+        // stems are only counted on request, so the default vocabulary stays the surface forms
+        TermProcessor processor = new TermProcessor(exclusionTerms, fbParams.get("fbStemTerms", false) ? stemmer : null);
+        // per-document scratch counts indexed by term id, and the ids touched in this document
+        int[] scratch = new int[1024];
+        TIntArrayList touched = new TIntArrayList();
+        offsets.add(0);
+
+        for (int d = 0; d < vectors.length; d++) {
+            ScoredDocument sd = initialResults.get(d);
+            doc = vectors[d];
 
             if (doc == null) {
                 logger.info("Failed to retrieve document: " + sd.documentName + " -- RM skipping document.");
                 continue;
             }
 
-            List<String> docterms = doc.terms;
-            docLength.put(sd, doc.terms.size());
+            addDocument(sd, doc);
 
-            sd.annotation = new AnnotatedNode();
-            sd.annotation.extraInfo = "" + docterms.size();
-
-            for (String term : docterms) {
-                // perform stopword and query term filtering here 
-                String stemmedTerm = (stemmer == null) ? term : stemmer.stem(term);
-
-                if (exclusionTerms.contains(term)) {
+            for (int t = 0; t < doc.size(); t++) {
+                // stopword filtering and stemming, memoized per surface form
+                int id = processor.getId(doc.getTerm(t));
+                if (id == TermProcessor.EXCLUDED) {
                     continue; // on the blacklist
                 }
-                if (!termCounts.containsKey(term)) {
-                    termCounts.put(term, new HashMap<ScoredDocument, Integer>());
+                if (id >= scratch.length) {
+                    scratch = Arrays.copyOf(scratch, Math.max(id + 1, scratch.length * 2));
                 }
-                termCount = termCounts.get(term);
-                if (termCount.containsKey(sd)) {
-                    termCount.put(sd, termCount.get(sd) + 1);
-                } else {
-                    termCount.put(sd, 1);
+                if (scratch[id] == 0) {
+                    touched.add(id);
                 }
+                scratch[id] += doc.getCount(t);
             }
+
+            for (int i = 0; i < touched.size(); i++) {
+                int id = touched.getQuick(i);
+                ids.add(id);
+                counts.add(scratch[id]);
+                scratch[id] = 0;
+            }
+            touched.resetQuick();
+            resultIndex.add(d);
+            offsets.add(ids.size());
         }
-        termCountsReverse = convert(termCounts);
+
+        bytesFetched = fetched.sum();
+        docResultIndex = resultIndex.toArray();
+        docOffsets = offsets.toArray();
+        docTermIds = ids.toArray();
+        docTermCounts = counts.toArray();
+        terms = processor.getTerms();
+        numTerms = terms.length;
+        termIds = processor.getTermIds();
+        computeTotals();
     }
     
-    
-    private Map <ScoredDocument, Map<String, Integer>> convert (Map<String, Map<ScoredDocument, Integer>> in){
-        Map <ScoredDocument, Map<String, Integer>> counts = new HashMap <>();
-        for (String term : in.keySet()){
-            for (ScoredDocument sd : in.get(term).keySet()){
-                if (!counts.containsKey(sd)){
-                    counts.put(sd, new HashMap <>());
+    /**
+     * Counts every feedback document into aggregated totals as it is
+     * fetched, keeping no per-document counts.
+     */
+    private void processStreaming() throws IOException {
+        String group = fbParams.get("group", (String) null);
+        LongAdder fetched = new LongAdder();
+        TIntArrayList resultIndex = new TIntArrayList(initialResults.size());
+        Deque<Future<DocumentVector>> pending = new ArrayDeque<>(STREAM_FETCH_WINDOW);
+        int submitted = 0;
+
+        try (TermCountAccumulator counts = new TermCountAccumulator(exclusionTerms,
+                fbParams.get("fbStemTerms", false) ? stemmer : null,
+                fbParams.get("fbMemoryBudget", TermCountAccumulator.DEFAULT_MEMORY_BUDGET),
+                fbParams.get("fbSpillDir", (String) null))) {
+            for (int d = 0; d < initialResults.size(); d++) {
+                ScoredDocument sd = initialResults.get(d);
+                DocumentVector doc;
+                if (fetchPool == null) {
+                    doc = fetch(sd.documentName, group, fetched);
+                } else {
+                    while (submitted < initialResults.size() && submitted < d + STREAM_FETCH_WINDOW) {
+                        String documentName = initialResults.get(submitted++).documentName;
+                        pending.add(fetchPool.submit(() -> fetch(documentName, group, fetched)));
+                    }
+                    doc = await(pending.poll());
+                }
+
+                if (doc == null) {
+                    logger.info("Failed to retrieve document: " + sd.documentName + " -- RM skipping document.");
+                    continue;
                 }
-                counts.get(sd).put(term, in.get(term).get(sd));
+                counts.add(doc);
+                resultIndex.add(d);
+            }
+            counts.finish();
+            terms = counts.getTerms();
+            numTerms = terms.length;
+            termIds = counts.getTermIds();
+            termTotals = counts.getTermTotals();
+            termDocFreqs = counts.getTermDocFreqs();
+            numSpills = counts.getNumSpills();
+        } finally {
+            for (Future<DocumentVector> f : pending) {
+                f.cancel(true);
+            }
+        }
+        if (numSpills > 0) {
+            logger.info("Spilled the counts of " + resultIndex.size() + " feedback documents to " + numSpills + " files");
+        }
+        bytesFetched = fetched.sum();
+        docResultIndex = resultIndex.toArray();
+    }
+
+    private void addDocument(ScoredDocument sd, DocumentVector doc) {
+        docLength.put(sd, doc.getLength());
+
+        sd.annotation = new AnnotatedNode();
+        sd.annotation.extraInfo = "" + doc.getLength();
+        documents.add(sd);
+    }
+
+    private void computeTotals() {
+        termTotals = new int[numTerms];
+        termDocFreqs = new int[numTerms];
+        for (int i = 0; i < docTermIds.length; i++) {
+            termTotals[docTermIds[i]] += docTermCounts[i];
+            termDocFreqs[docTermIds[i]]++;
+        }
+    }
+    
+    /**
+     * @return the vector of every initial result, in rank order, null for
+     * documents that could not be fetched
+     */
+    private DocumentVector[] fetchAll(String group, LongAdder fetched) throws IOException {
+        DocumentVector[] res = new DocumentVector[initialResults.size()];
+        if (fetchPool == null || res.length < 2) {
+            for (int i = 0; i < res.length; i++) {
+                res[i] = fetch(initialResults.get(i).documentName, group, fetched);
+            }
+            return res;
+        }
+        List<Future<DocumentVector>> pending = new ArrayList<>(res.length);
+        for (ScoredDocument sd : initialResults) {
+            pending.add(fetchPool.submit(() -> fetch(sd.documentName, group, fetched)));
+        }
+        try {
+            for (int i = 0; i < res.length; i++) {
+                res[i] = await(pending.get(i));
+            }
+        } finally {
+            for (Future<DocumentVector> f : pending) {
+                f.cancel(true);
             }
         }
-        return counts;
+        return res;
     }
     
+    private static DocumentVector await(Future<DocumentVector> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+    }
+    
+    private DocumentVector fetch(String documentName, String group, LongAdder fetched) throws IOException {
+        if (documentCache != null && !streaming)
+            return documentCache.get(retrieval, documentName, group, fetched);
+        // the raw text is only needed for its length, which streaming mode estimates
+        DocumentVector doc = DocumentVectorCache.load(retrieval, documentName, group, streaming);
+        if (doc != null) {
+            fetched.add(doc.getTextLength());
+        }
+        return doc;
+    }
     
     public Map<ScoredDocument, Integer> getDocLength() {
+        checkDocumentCounts();
         return docLength;
     }
 
-    public Map<String, Map<ScoredDocument, Integer>> getTermCounts() {
+    /**
+     * @return approximate number of bytes read from the index to build this
+     * feedback set; documents served from the document cache are not counted
+     */
+    public long getBytesFetched() {
+        return bytesFetched;
+    }
+
+    public int getNumTerms() {
+        return numTerms;
+    }
+
+    /**
+     * @return the term with the given id
+     */
+    public String getTerm(int id) {
+        return terms[id];
+    }
+
+    /**
+     * @return the id of term, or -1 if it does not occur in the feedback documents
+     */
+    public int getTermId(String term) {
+        return termIds.get(term);
+    }
+
+    /**
+     * @return all feedback terms, indexed by term id (not a copy)
+     */
+    public String[] getTerms() {
+        return terms;
+    }
+
+    /**
+     * @return c(w;F) for every term id (not a copy)
+     */
+    public int[] getTermTotals() {
+        return termTotals;
+    }
+
+    /**
+     * @return number of feedback documents containing each term id (not a copy)
+     */
+    public int[] getTermDocFreqs() {
+        return termDocFreqs;
+    }
+
+    /**
+     * @return true if only aggregated counts were kept, see fbStreaming
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @return number of times the counts were spilled to disk in streaming mode
+     */
+    public int getNumSpills() {
+        return numSpills;
+    }
+
+    public int getNumDocs() {
+        return docResultIndex.length;
+    }
+
+    /**
+     * @return the i-th successfully fetched feedback document
+     */
+    public ScoredDocument getDocument(int i) {
+        checkDocumentCounts();
+        return documents.get(i);
+    }
+
+    public synchronized Map<String, Map<ScoredDocument, Integer>> getTermCounts() {
+        checkDocumentCounts();
+        if (termCounts == null) {
+            Map<String, Map<ScoredDocument, Integer>> res = new HashMap<>(numTerms * 2);
+            for (int d = 0; d < documents.size(); d++) {
+                ScoredDocument sd = documents.get(d);
+                for (int i = docOffsets[d]; i < docOffsets[d + 1]; i++) {
+                    String term = terms[docTermIds[i]];
+                    Map<ScoredDocument, Integer> termCount = res.get(term);
+                    if (termCount == null) {
+                        termCount = new HashMap<>();
+                        res.put(term, termCount);
+                    }
+                    termCount.put(sd, docTermCounts[i]);
+                }
+            }
+            termCounts = res;
+        }
         return termCounts;
     }
 
-    public Map<ScoredDocument, Map<String, Integer>> getTermCountsReverse() {
+    public synchronized Map<ScoredDocument, Map<String, Integer>> getTermCountsReverse() {
+        checkDocumentCounts();
+        if (termCountsReverse == null) {
+            Map<ScoredDocument, Map<String, Integer>> res = new HashMap<>();
+            for (int d = 0; d < documents.size(); d++) {
+                Map<String, Integer> counts = new HashMap<>();
+                for (int i = docOffsets[d]; i < docOffsets[d + 1]; i++) {
+                    counts.put(terms[docTermIds[i]], docTermCounts[i]);
+                }
+                res.put(documents.get(d), counts);
+            }
+            termCountsReverse = res;
+        }
         return termCountsReverse;
     }
 
+    private void checkDocumentCounts() {
+        if (streaming)
+            throw new UnsupportedOperationException("Feedback data built with fbStreaming keeps no per-document counts");
+    }
 
     public List<ScoredDocument> getInitialResults() {
         return initialResults;
@@ -129,7 +493,12 @@ public class FeedbackData {
         if (ret.getGlobalParameters().isString("rmStemmer")) {
             String rmstemmer = ret.getGlobalParameters().getString("rmStemmer");
             try {
-                stemmer = (Stemmer) Class.forName(rmstemmer).getConstructor().newInstance();
+                Constructor<? extends Stemmer> constructor = stemmerConstructors.get(rmstemmer);
+                if (constructor == null) {
+                    constructor = Class.forName(rmstemmer).asSubclass(Stemmer.class).getConstructor();
+                    stemmerConstructors.put(rmstemmer, constructor);
+                }
+                stemmer = constructor.newInstance();
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -0,0 +1,90 @@
+package edu.umass.cs.cs646;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size log-linear histogram of non-negative long values, in the style
+ * of HdrHistogram: values below 128 are exact, larger values keep their 7
+ * most significant bits (under 1% relative error). Recording is lock-free
+ * and allocation-free.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // retry
+        }
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exp - (SUB_BITS - 1);
+        int mantissa = (int) (value >>> shift);
+        return SUB_COUNT + (exp - SUB_BITS) * HALF_COUNT + (mantissa - HALF_COUNT);
+    }
+
+    /**
+     * @return the midpoint of the value range covered by a bucket
+     */
+    static long valueOf(int index) {
+        if (index < SUB_COUNT)
+            return index;
+        int k = index - SUB_COUNT;
+        int exp = SUB_BITS + k / HALF_COUNT;
+        int shift = exp - (SUB_BITS - 1);
+        long lower = (long) (HALF_COUNT + k % HALF_COUNT) << shift;
+        return lower + ((1L << shift) >>> 1);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return (n == 0) ? 0.0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile in [0, 100]
+     * @return the (bucket-rounded) value at the given percentile, 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = getCount();
+        if (n == 0)
+            return 0;
+        if (percentile >= 100.0)
+            return getMax();
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(valueOf(i), getMax());
+        }
+        return getMax();
+    }
+}
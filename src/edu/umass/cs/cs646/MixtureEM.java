@@ -0,0 +1,232 @@
+package edu.umass.cs.cs646;
+
+import java.util.Arrays;
+
+/**
+ * EM estimation of the feedback topic model in the two-component mixture
+ * p(w|F) = (1 - lambda) p(w|theta) + lambda p(w|C).
+ *
+ * Terms are addressed by dense ids, so one iteration is a single O(V) pass
+ * for the E-step and the normalizer, plus one O(V) pass for the M-step.
+ * EM stops when the chosen {@link Convergence} criterion falls below the
+ * tolerance, or after maxIterations iterations.
+ */
+public class MixtureEM {
+    public static final double DEFAULT_TOLERANCE = 0.0001;
+    public static final int DEFAULT_MAX_ITERATIONS = 100;
+    // floor for warm-start weights, since EM never moves a zero weight
+    static final double MIN_INITIAL_WEIGHT = 1e-10;
+
+    public enum Convergence {
+        // largest change of a single weight
+        MAX_ABS,
+        // sum of the absolute weight changes
+        L1,
+        // relative change of the log-likelihood of the feedback set
+        LOG_LIKELIHOOD;
+
+        public static Convergence forName(String name) {
+            switch (name) {
+                case "maxAbs":
+                    return MAX_ABS;
+                case "l1":
+                    return L1;
+                case "logLikelihood":
+                    return LOG_LIKELIHOOD;
+                default:
+                    throw new IllegalArgumentException("Unknown EM convergence criterion: " + name);
+            }
+        }
+    }
+
+    private final int[] termFreqs;
+    private final double[] pwc;
+    private final double lambda;
+    private double tolerance = DEFAULT_TOLERANCE;
+    private int maxIterations = DEFAULT_MAX_ITERATIONS;
+    private Convergence convergence = Convergence.MAX_ABS;
+    private int iterations;
+    private boolean converged;
+    private double logLikelihood;
+
+    /**
+     * @param termFreqs c(w;F) for every term id
+     * @param pwc p(w|C) for every term id
+     * @param lambda weight of the background model
+     */
+    public MixtureEM(int[] termFreqs, double[] pwc, double lambda) {
+        if (termFreqs.length != pwc.length)
+            throw new IllegalArgumentException("termFreqs and pwc must have the same length");
+        if (lambda < 0.0 || lambda >= 1.0)
+            throw new IllegalArgumentException("lambda must be in [0, 1): " + lambda);
+        this.termFreqs = termFreqs;
+        this.pwc = pwc;
+        this.lambda = lambda;
+    }
+
+    public MixtureEM setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    public MixtureEM setMaxIterations(int maxIterations) {
+        if (maxIterations <= 0)
+            throw new IllegalArgumentException("maxIterations must be positive: " + maxIterations);
+        this.maxIterations = maxIterations;
+        return this;
+    }
+
+    public MixtureEM setConvergence(Convergence convergence) {
+        this.convergence = convergence;
+        return this;
+    }
+
+    /**
+     * Runs EM from uniform weights.
+     *
+     * @return p(w|theta) for every term id
+     */
+    public double[] run() {
+        int n = termFreqs.length;
+        double[] weights = new double[n];
+        if (n > 0)
+            Arrays.fill(weights, 1.0 / n);
+        return iterate(weights);
+    }
+
+    /**
+     * Runs EM from the given estimate of p(w|theta), e.g. the weights of an
+     * earlier run or {@link #maximumLikelihood()}. Weights are floored and
+     * renormalized first, so terms missing from the estimate can still gain
+     * mass.
+     *
+     * @return p(w|theta) for every term id
+     */
+    public double[] run(double[] initial) {
+        if (initial.length != termFreqs.length)
+            throw new IllegalArgumentException("initial weights must have one entry per term");
+        double[] weights = new double[initial.length];
+        double ttl = 0.0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = Math.max(initial[i], MIN_INITIAL_WEIGHT);
+            ttl += weights[i];
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= ttl;
+        }
+        return iterate(weights);
+    }
+
+    /**
+     * @return c(w;F) / |F|, the estimate of p(w|theta) with no background
+     * model, as a cheap starting point
+     */
+    public double[] maximumLikelihood() {
+        double[] res = new double[termFreqs.length];
+        long ttl = 0;
+        for (int tf : termFreqs) {
+            ttl += tf;
+        }
+        for (int i = 0; i < res.length; i++) {
+            res[i] = (ttl > 0) ? (double) termFreqs[i] / ttl : 0.0;
+        }
+        return res;
+    }
+
+    private double[] iterate(double[] weights) {
+        int n = weights.length;
+        double[] next = new double[n];
+        double[] ps = new double[n];
+        iterations = 0;
+        converged = false;
+        logLikelihood = 0.0;
+        if (n == 0) {
+            converged = true;
+            return weights;
+        }
+
+        while (true) {
+            double previous = logLikelihood;
+            logLikelihood = step(weights, ps, next);
+            iterations++;
+            switch (convergence) {
+                case L1:
+                    converged = l1Difference(weights, next) < tolerance;
+                    break;
+                case LOG_LIKELIHOOD:
+                    // the likelihood is the one of weights, so the first step has nothing to compare with
+                    converged = iterations > 1 && Math.abs(logLikelihood - previous) < tolerance * Math.abs(previous);
+                    break;
+                default:
+                    converged = maxAbsDifference(weights, next) < tolerance;
+            }
+            double[] tmp = weights;
+            weights = next;
+            next = tmp;
+            if (converged || iterations >= maxIterations)
+                return weights;
+        }
+    }
+
+    /**
+     * One EM iteration: E-step into ps, M-step into next.
+     *
+     * @return the log-likelihood of the feedback set under weights
+     */
+    double step(double[] weights, double[] ps, double[] next) {
+        double ttl = 0.0;
+        double ll = 0.0;
+        for (int i = 0; i < weights.length; i++) {
+            double w = (1.0 - lambda) * weights[i];
+            double denom = w + lambda * pwc[i];
+            ps[i] = (denom > 0.0) ? w / denom : 0.0;
+            ttl += termFreqs[i] * ps[i];
+            if (denom > 0.0)
+                ll += termFreqs[i] * Math.log(denom);
+        }
+        for (int i = 0; i < weights.length; i++) {
+            next[i] = (ttl > 0.0) ? (termFreqs[i] * ps[i]) / ttl : 0.0;
+        }
+        return ll;
+    }
+
+    static double maxAbsDifference(double[] a, double[] b) {
+        double max = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            double d = Math.abs(a[i] - b[i]);
+            if (d > max)
+                max = d;
+        }
+        return max;
+    }
+
+    static double l1Difference(double[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of iterations used by the last call to run()
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return false if the last call to run() stopped at maxIterations
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * @return log-likelihood of the feedback set before the last iteration
+     * of the last call to run()
+     */
+    public double getLogLikelihood() {
+        return logLikelihood;
+    }
+}
@@ -2,9 +2,17 @@ package edu.umass.cs.cs646;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.lemurproject.galago.core.index.stats.FieldStatistics;
-import org.lemurproject.galago.core.index.stats.NodeStatistics;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import gnu.trove.map.hash.TObjectDoubleHashMap;
 import org.lemurproject.galago.core.parse.stem.Stemmer;
 import org.lemurproject.galago.core.retrieval.Results;
 import org.lemurproject.galago.core.retrieval.Retrieval;
@@ -18,24 +26,92 @@ import org.lemurproject.galago.core.util.WordLists;
 import org.lemurproject.galago.utility.Parameters;
 
 /**
+ * Build one instance per Retrieval and reuse it: configuration is read once
+ * at construction and all per-query state lives in an {@link ExpansionContext},
+ * so expand() is safe to call concurrently.
  *
  * @author Hamed Zamani (zamani@cs.umass.edu)
  */
 public class MixtureFeedbackModel implements ExpansionModel{
-    protected Retrieval retrieval;
-    int defaultFbDocs, defaultFbTerms;
-    double defaultFbOrigWeight;
-    Set <String> exclusionTerms;
-    Stemmer stemmer;
+    private static final Logger logger = Logger.getLogger("MixtureFeedbackModel");
+    // stopword lists by name, loaded once per JVM
+    private static final Map<String, Set<String>> stopwordLists = new ConcurrentHashMap<>();
+    // query parameters that change the ranking of the initial retrieval: the
+    // scorer and its smoothing (mu for dirichlet, b and k for bm25; the jm
+    // lambda is keyed as the mixture lambda)
+    static final String[] RANKING_PARAMETERS = {"scorer", "mu", "b", "k"};
+    protected final Retrieval retrieval;
+    final int defaultFbDocs, defaultFbTerms;
+    final double defaultFbOrigWeight, defaultLambda;
+    final Set <String> exclusionTerms;
+    final ThreadLocal<Stemmer> stemmer;
+    final BackgroundModel background;
+    final DocumentVectorCache documentCache;
+    final ExpansionCache expansionCache;
+    // shared by all queries; null when feedback documents are fetched serially
+    final ExecutorService fetchPool;
+    // final EM weights of recent queries, for emWarmStart=cached
+    final Cache<String, TObjectDoubleHashMap<String>> warmStartWeights;
     
-    public MixtureFeedbackModel (Retrieval r) throws IOException{
+    public MixtureFeedbackModel (Retrieval r) throws Exception{
+        this(r, BackgroundModel.open(r));
+    }
+    
+    public MixtureFeedbackModel (Retrieval r, BackgroundModel background) throws IOException{
+        this(r, background, new DocumentVectorCache(r.getGlobalParameters()));
+    }
+    
+    public MixtureFeedbackModel (Retrieval r, BackgroundModel background, DocumentVectorCache documentCache) throws IOException{
+        this(r, background, documentCache, null);
+    }
+    
+    /**
+     * @param expansionCache cache of final expansions, or null to expand every query
+     */
+    public MixtureFeedbackModel (Retrieval r, BackgroundModel background, DocumentVectorCache documentCache, ExpansionCache expansionCache) throws IOException{
         retrieval = r;
+        this.background = background;
+        this.documentCache = documentCache;
+        this.expansionCache = expansionCache;
         defaultFbDocs = (int) Math.round(r.getGlobalParameters().get("fbDocs", 10.0));
         defaultFbTerms = (int) Math.round(r.getGlobalParameters().get("fbTerm", 100.0));
         defaultFbOrigWeight = r.getGlobalParameters().get("fbOrigWeight", 0.2);
-        exclusionTerms = WordLists.getWordList(r.getGlobalParameters().get("rmstopwords", "rmstop"));
+        defaultLambda = r.getGlobalParameters().get("lambda", 0.5);
+        exclusionTerms = getStopwords(r.getGlobalParameters().get("rmstopwords", "rmstop"));
+        int fetchThreads = (int) r.getGlobalParameters().get("fbFetchThreads", 1L);
+        fetchPool = (fetchThreads > 1) ? Executors.newFixedThreadPool(fetchThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("feedback-fetch-%d").build()) : null;
+        warmStartWeights = Caffeine.newBuilder().maximumSize(r.getGlobalParameters().get("emWarmStartCacheSize", 1000L)).build();
         Parameters gblParms = r.getGlobalParameters();
-        this.stemmer = FeedbackData.getStemmer(gblParms, retrieval);
+        // Stemmer instances are not thread-safe, so each thread gets its own
+        this.stemmer = ThreadLocal.withInitial(() -> FeedbackData.getStemmer(gblParms, retrieval));
+    }
+    
+    /**
+     * @return the named stopword list as an immutable hashed set, shared by
+     * every model in the JVM
+     */
+    static Set<String> getStopwords(String name) throws IOException {
+        Set<String> words = stopwordLists.get(name);
+        if (words == null) {
+            words = ImmutableSet.copyOf(WordLists.getWordList(name));
+            Set<String> prev = stopwordLists.putIfAbsent(name, words);
+            if (prev != null)
+                words = prev;
+        }
+        return words;
+    }
+    
+    public BackgroundModel getBackgroundModel() {
+        return background;
+    }
+    
+    public DocumentVectorCache getDocumentCache() {
+        return documentCache;
+    }
+    
+    public ExpansionCache getExpansionCache() {
+        return expansionCache;
     }
     
     public List<ScoredDocument> collectInitialResults(Node transformed, Parameters fbParams) throws Exception {
@@ -46,17 +122,118 @@ public class MixtureFeedbackModel implements ExpansionModel{
         return res;
     }
     
+    /**
+     * Fetches and counts the feedback documents with this model's caches,
+     * stopwords and fetch pool.
+     */
+    public FeedbackData collectFeedbackData(List<ScoredDocument> initialResults, Parameters fbParams) throws IOException {
+        return new FeedbackData(retrieval, exclusionTerms, initialResults, fbParams, documentCache, stemmer.get(), fetchPool);
+    }
+    
+    public Set<String> getQueryTerms(Node transformed) {
+        return getTerms(stemmer.get(), StructuredQuery.findQueryTerms(transformed));
+    }
+    
     public Node generateExpansionQuery(List<WeightedTerm> weightedTerms, int fbTerms) throws IOException, Exception {
+        return generateExpansionQuery(weightedTerms, fbTerms, 1.0);
+    }
+    
+    /**
+     * Same as above, keeping only the best terms that together carry at
+     * least weightMass of the weight of the fbTerms best terms, so that a long
+     * tail of low-weight terms does not add postings to score.
+     */
+    public Node generateExpansionQuery(List<WeightedTerm> weightedTerms, int fbTerms, double weightMass) throws IOException, Exception {
+        int numTerms = getExpansionTermCount(weightedTerms, fbTerms, weightMass);
         Node expNode = new Node("combine");
-        System.err.println("Feedback Terms:");
-        for (int i = 0; i < Math.min(weightedTerms.size(), fbTerms); i++) {
+        for (int i = 0; i < numTerms; i++) {
           Node expChild = new Node("text", weightedTerms.get(i).getTerm());
           expNode.addChild(expChild);
           expNode.getNodeParameters().set("" + i, weightedTerms.get(i).getWeight());
         }
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("Feedback Terms: " + weightedTerms.subList(0, numTerms));
         return expNode;
     }
     
+    /**
+     * @return the length of the shortest prefix of the fbTerms best terms
+     * whose weights sum to at least weightMass of theirs
+     */
+    static int getExpansionTermCount(List<WeightedTerm> weightedTerms, int fbTerms, double weightMass) {
+        int n = Math.min(weightedTerms.size(), fbTerms);
+        if (weightMass >= 1.0)
+            return n;
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += weightedTerms.get(i).getWeight();
+        }
+        double mass = 0;
+        for (int i = 0; i < n; i++) {
+            mass += weightedTerms.get(i).getWeight();
+            if (mass >= weightMass * total)
+                return i + 1;
+        }
+        return n;
+    }
+    
+    /**
+     * Collects the documents that the expanded query of ctx is scored on
+     * when "fbRerank" is set: the top "fbRerankDepth" initial results
+     * (default "requested"), plus, if "fbRerankTerms" is above 0 (the
+     * default is 0), the top "fbRerankTermDocs" documents of each of that
+     * many best expansion terms. The names are left in ctx and belong in the
+     * "working" parameter of the final retrieval.
+     *
+     * The pool is not free: the initial retrieval runs at fbRerankDepth
+     * instead of fbDocs (and runs at all after an expansion cache hit), and
+     * every expansion term in the pool costs one more retrieval over its
+     * postings. For short expanded queries this can exceed the cost of
+     * scoring the expanded query directly; the "candidates" stage of the
+     * trace measures it, so compare it with "finalRetrieval" before turning
+     * fbRerankTerms on.
+     *
+     * @return the candidate document names, or null when fbRerank is off
+     */
+    public List<String> collectCandidates(ExpansionContext ctx) throws Exception {
+        Parameters queryParameters = ctx.queryParameters;
+        if (!queryParameters.get("fbRerank", false))
+            return null;
+        QueryTrace trace = ctx.trace;
+        long start = trace.start();
+        int depth = getRerankDepth(queryParameters);
+        if (ctx.initialResults == null) {
+            // the expansion came from the cache, so the initial retrieval did not run
+            ctx.fbParams = getFbParameters(ctx.root, queryParameters);
+            ctx.fbParams.set("requested", (long) depth);
+            ctx.transformed = retrieval.transformQuery(ctx.root.clone(), ctx.fbParams);
+            ctx.initialResults = collectInitialResults(ctx.transformed, ctx.fbParams);
+        }
+        Set<String> candidates = new LinkedHashSet<>();
+        for (int i = 0; i < Math.min(depth, ctx.initialResults.size()); i++) {
+            candidates.add(ctx.initialResults.get(i).documentName);
+        }
+        int numTerms = Math.min(ctx.expansionTerms, (int) queryParameters.get("fbRerankTerms", 0L));
+        Parameters termParams = Parameters.create();
+        termParams.set("requested", queryParameters.get("fbRerankTermDocs", 100L));
+        termParams.setBackoff(queryParameters);
+        for (int i = 0; i < numTerms; i++) {
+            Node termQuery = new Node("combine");
+            termQuery.addChild(new Node("text", ctx.weightedTerms.get(i).getTerm()));
+            for (ScoredDocument sd : retrieval.executeQuery(retrieval.transformQuery(termQuery, termParams), termParams).scoredDocuments) {
+                candidates.add(sd.documentName);
+            }
+        }
+        ctx.candidates = new ArrayList<>(candidates);
+        trace.stop(QueryTrace.Stage.CANDIDATES, start);
+        trace.setCandidatePoolSize(ctx.candidates.size());
+        return ctx.candidates;
+    }
+    
+    int getRerankDepth(Parameters queryParameters) {
+        return (int) queryParameters.get("fbRerankDepth", queryParameters.get("requested", 1000L));
+    }
+    
     public int getFbDocCount (Node root, Parameters queryParameters) throws Exception{
         int fbDocs = (int)Math.round(root.getNodeParameters().get("fbDocs", queryParameters.get("fbDocs", (double) defaultFbDocs)));
         if (fbDocs <= 0)
@@ -104,23 +281,139 @@ public class MixtureFeedbackModel implements ExpansionModel{
 
     @Override
     public Node expand(Node root, Parameters queryParameters) throws Exception {
-        int fbTerms = getFbTermCount(root, queryParameters); 
+        return expand(root, queryParameters, new QueryTrace(queryParameters.get("number", "")));
+    }
+    
+    /**
+     * Same as {@link #expand(Node, Parameters)}, recording stage timings and
+     * sizes into trace.
+     */
+    public Node expand(Node root, Parameters queryParameters, QueryTrace trace) throws Exception {
+        return expand(new ExpansionContext(root, queryParameters, trace));
+    }
+    
+    /**
+     * Expands ctx.getRoot(), leaving every intermediate result in ctx. When the
+     * expansion comes from the expansion cache, only the weighted terms and
+     * nodes of ctx are set.
+     */
+    public Node expand(ExpansionContext ctx) throws Exception {
+        Node root = ctx.root;
+        Parameters queryParameters = ctx.queryParameters;
+        QueryTrace trace = ctx.trace;
+        ctx.fbTerms = getFbTermCount(root, queryParameters); 
+        String cacheKey = null;
+        if (expansionCache != null) {
+            cacheKey = getExpansionCacheKey(root, queryParameters);
+        }
+        if (cacheKey != null) {
+            List<WeightedTerm> cached = expansionCache.get(cacheKey);
+            if (cached != null) {
+                trace.setExpansionCacheHit(true);
+                ctx.weightedTerms = cached;
+                setExpansionTermCount(ctx);
+                ctx.expansionNode = generateExpansionQuery(cached, ctx.expansionTerms);
+                ctx.expandedQuery = interpolate(root, ctx.expansionNode, queryParameters);
+                return ctx.expandedQuery;
+            }
+        }
         // transform query to ensure it will run
-        Parameters fbParams = getFbParameters(root, queryParameters);
-        Node transformed = retrieval.transformQuery(root.clone(), fbParams);
+        ctx.fbParams = getFbParameters(root, queryParameters);
+        int fbDocs = getFbDocCount(root, queryParameters);
+        if (queryParameters.get("fbRerank", false)) {
+            // one initial retrieval serves both the feedback set and the candidate pool
+            ctx.fbParams.set("requested", (long) Math.max(fbDocs, getRerankDepth(queryParameters)));
+        }
+        ctx.transformed = retrieval.transformQuery(root.clone(), ctx.fbParams);
         
         // get some initial results
-        List<ScoredDocument> initialResults = collectInitialResults(transformed, fbParams);
-   
+        long start = trace.start();
+        ctx.initialResults = collectInitialResults(ctx.transformed, ctx.fbParams);
+        trace.stop(QueryTrace.Stage.INITIAL_RETRIEVAL, start);
         
         // extract grams from results
-        Set<String> queryTerms = getTerms(stemmer, StructuredQuery.findQueryTerms(transformed));
-        FeedbackData feedbackData = new FeedbackData(retrieval, exclusionTerms, initialResults, fbParams);
-        List <WeightedTerm> weightedTerms = computeWeights(feedbackData, fbParams, queryParameters, queryTerms);
-        Collections.sort(weightedTerms);
-        Node expNode = generateExpansionQuery(weightedTerms, fbTerms);
+        ctx.queryTerms = getQueryTerms(ctx.transformed);
+        start = trace.start();
+        ctx.feedbackData = collectFeedbackData(ctx.initialResults.subList(0, Math.min(fbDocs, ctx.initialResults.size())), ctx.fbParams);
+        trace.stop(QueryTrace.Stage.DOCUMENT_FETCH, start);
+        trace.setFeedbackDocs(ctx.feedbackData.getNumDocs());
+        trace.setBytesFetched(ctx.feedbackData.getBytesFetched());
+        double[] weights = computeTermWeights(ctx.feedbackData, ctx.fbParams, queryParameters, ctx.queryTerms, trace,
+                getWarmStartKey(root, queryParameters));
+        ctx.weightedTerms = TopTermSelector.select(ctx.feedbackData.getTerms(), weights, ctx.fbTerms);
+        if (cacheKey != null) {
+            expansionCache.put(cacheKey, ctx.weightedTerms);
+        }
+        setExpansionTermCount(ctx);
+        ctx.expansionNode = generateExpansionQuery(ctx.weightedTerms, ctx.expansionTerms);
         
-        return interpolate(root, expNode, queryParameters);
+        ctx.expandedQuery = interpolate(root, ctx.expansionNode, queryParameters);
+        return ctx.expandedQuery;
+    }
+    
+    /**
+     * Applies the "fbWeightMass" cutoff to the weighted terms of ctx.
+     */
+    private void setExpansionTermCount(ExpansionContext ctx) {
+        ctx.expansionTerms = getExpansionTermCount(ctx.weightedTerms, ctx.fbTerms, ctx.queryParameters.get("fbWeightMass", 1.0));
+        ctx.trace.setExpansionTerms(ctx.expansionTerms);
+    }
+    
+    /**
+     * @return the normalized query plus every parameter that changes its
+     * expansion terms, including the ranking parameters of the initial
+     * retrieval that picks the feedback documents; the weight-mass cutoff
+     * and the interpolation with fbOrigWeight are applied after the cache.
+     * Null, so that the query bypasses the cache, if the query restricts the
+     * initial retrieval to a "working" set or sets a ranking parameter to a
+     * list or map.
+     */
+    public String getExpansionCacheKey(Node root, Parameters queryParameters) throws Exception {
+        if (queryParameters.containsKey("working"))
+            return null;
+        StringBuilder sb = new StringBuilder();
+        for (String key : RANKING_PARAMETERS) {
+            String value = getScalar(queryParameters, key);
+            if (value == null)
+                return null;
+            sb.append(key).append('=').append(value).append('|');
+        }
+        int fbDocs = getFbDocCount(root, queryParameters);
+        int requested = queryParameters.get("fbRerank", false) ? Math.max(fbDocs, getRerankDepth(queryParameters)) : fbDocs;
+        sb.append("fbRequested=").append(requested);
+        sb.append("|fbDocs=").append(fbDocs);
+        sb.append("|fbTerm=").append(getFbTermCount(root, queryParameters));
+        sb.append("|lambda=").append(queryParameters.get("lambda", defaultLambda));
+        sb.append("|emTolerance=").append(queryParameters.get("emTolerance", MixtureEM.DEFAULT_TOLERANCE));
+        sb.append("|emMaxIterations=").append(queryParameters.get("emMaxIterations", (long) MixtureEM.DEFAULT_MAX_ITERATIONS));
+        sb.append("|emConvergence=").append(queryParameters.get("emConvergence", "maxAbs"));
+        sb.append("|emWarmStart=").append(queryParameters.get("emWarmStart", "none"));
+        sb.append("|group=").append(queryParameters.get("group", ""));
+        sb.append("|fbStemTerms=").append(queryParameters.get("fbStemTerms", false));
+        sb.append("|fbMinDf=").append(queryParameters.get("fbMinDf", 1L));
+        sb.append("|fbMaxCandidates=").append(queryParameters.get("fbMaxCandidates", 0L));
+        sb.append("|fbMaxPwc=").append(queryParameters.get("fbMaxPwc", 1.0));
+        // the parsed query prints in a canonical form; fold case and whitespace on top of it
+        sb.append("|").append(root.toString().toLowerCase().replaceAll("\\s+", " ").trim());
+        return sb.toString();
+    }
+    
+    /**
+     * @return the value of key as a string, "" if it is not set, or null if
+     * it is not a scalar
+     */
+    private static String getScalar(Parameters p, String key) {
+        if (!p.containsKey(key))
+            return "";
+        if (p.isString(key))
+            return p.getString(key);
+        if (p.isLong(key))
+            return String.valueOf((double) p.getLong(key));
+        if (p.isDouble(key))
+            return String.valueOf(p.getDouble(key));
+        if (p.isBoolean(key))
+            return String.valueOf(p.getBoolean(key));
+        return null;
     }
     
     public static Set<String> getTerms(Stemmer stemmer, Set<String> terms) {
@@ -136,102 +429,178 @@ public class MixtureFeedbackModel implements ExpansionModel{
     }
     
     public List <WeightedTerm> computeWeights (FeedbackData feedbackData, Parameters fbParam, Parameters queryParameters, Set <String> queryTerms) throws Exception{
-//        throw new Exception ("This should be implemented! This method outputs a list of terms with weights.");
-        Retrieval retrieval = this.retrieval;
-        Map<String, Map<ScoredDocument, Integer>> termCounts = feedbackData.termCounts;
-
-        Node fieldNode = StructuredQuery.parse("#lengths:document:part=lengths()");
-        FieldStatistics fieldStats = retrieval.getCollectionStatistics(fieldNode);
-        long corpusLength = fieldStats.collectionLength;
-        double pwc = 0;
-
-        int numTerms = termCounts.size();
-
-        //non-static maps
-        Map<String, Double> weights = new HashMap<>();
-        Map<String, Double> nextWeights = new HashMap<>();
-        Map<String, Double> ps = new HashMap<>();
-
-        //static maps
-        Map<String, Integer> termFreqs = new HashMap<>();
-        Map<String, Double> pwcs = new HashMap<>();
-
-        // initial round
-        for (String term: termCounts.keySet()){
-            // initiate weights map
-            double est = 1.0 / numTerms;
-            weights.put(term, est);
-
-            // record termFreqs map
-            int termFreq = 0;
-            Map<ScoredDocument, Integer> tmap = termCounts.get(term);
-            for (Map.Entry<ScoredDocument, Integer> entry : tmap.entrySet()) {
-                termFreq += entry.getValue();
-            }
-            termFreqs.put(term, termFreq);
-
-            // record pwcs map
-            Node node = StructuredQuery.parse(term);
-            node.getNodeParameters().set("queryType", "count");
-            node = retrieval.transformQuery(node, Parameters.create());
-
-            NodeStatistics stat = retrieval.getNodeStatistics(node);
-            long corpusTF = stat.nodeFrequency;
-            pwc = (double)corpusTF / corpusLength;
-            pwcs.put(term, pwc);
-
-            // initial ps map
-            double p = est / est + pwc;
-            ps.put(term, p);
-
-            // compute nextWeights map
-            double ttl = 0.0;
-            for (Map.Entry<String, Double> entry: ps.entrySet()){
-                ttl += termFreqs.get(entry.getKey()) * entry.getValue();
-            }
-            double newWeight = (termFreq * p) / ttl;
-            nextWeights.put(term, newWeight);
+        return computeWeights(feedbackData, fbParam, queryParameters, queryTerms, new QueryTrace(queryParameters.get("number", "")));
+    }
+    
+    public List <WeightedTerm> computeWeights (FeedbackData feedbackData, Parameters fbParam, Parameters queryParameters, Set <String> queryTerms, QueryTrace trace) throws Exception{
+        String[] terms = feedbackData.getTerms();
+        double[] weights = computeTermWeights(feedbackData, fbParam, queryParameters, queryTerms, trace);
+        List <WeightedTerm> res = new ArrayList<>(terms.length);
+        for (int i = 0; i < terms.length; i++) {
+            res.add(new WeightedUnigram(terms[i], weights[i]));
         }
+        return res;
+    }
+    
+    /**
+     * @return the key under which the EM weights of a query are kept for
+     * later warm starts: the query and the parameters that decide its
+     * feedback vocabulary, but not lambda or the EM settings
+     */
+    public String getWarmStartKey(Node root, Parameters queryParameters) throws Exception {
+        return "fbDocs=" + getFbDocCount(root, queryParameters)
+                + "|group=" + queryParameters.get("group", "")
+                + "|fbStemTerms=" + queryParameters.get("fbStemTerms", false)
+                + "|" + root.toString();
+    }
+    
+    /**
+     * @return p(w|theta) for every feedback term id of feedbackData
+     */
+    public double[] computeTermWeights (FeedbackData feedbackData, Parameters fbParam, Parameters queryParameters, Set <String> queryTerms, QueryTrace trace) throws Exception{
+        return computeTermWeights(feedbackData, fbParam, queryParameters, queryTerms, trace, null);
+    }
+    
+    /**
+     * EM is controlled by the query parameters "lambda", "emTolerance",
+     * "emMaxIterations", "emConvergence" (maxAbs, l1 or logLikelihood) and
+     * "emWarmStart": none starts from uniform weights, mle from the
+     * maximum-likelihood estimate of the feedback set, and cached from the
+     * final weights of the last query with the same warmStartKey (mle when
+     * there are none). The default is none.
+     *
+     * Only none and mle are deterministic. With cached, the start point of
+     * a query depends on which earlier run of the same query (for example
+     * with another lambda) finished last, so when queries run concurrently,
+     * as in a parallel BatchSearch or the search service, the same query
+     * file can give slightly different weights and rankings from run to
+     * run. Use cached for sequential sweeps, where the order is fixed.
+     *
+     * Before EM, the vocabulary is pruned to the terms in at least "fbMinDf"
+     * feedback documents, then to the "fbMaxCandidates" most frequent of
+     * those (0 for no cap), and after the statistics lookup to the terms
+     * with p(w|C) of at most "fbMaxPwc". Pruned terms get weight 0.
+     *
+     * @param warmStartKey key of the query for emWarmStart=cached, or null
+     * @return p(w|theta) for every feedback term id of feedbackData
+     */
+    public double[] computeTermWeights (FeedbackData feedbackData, Parameters fbParam, Parameters queryParameters, Set <String> queryTerms, QueryTrace trace, String warmStartKey) throws Exception{
+        String[] allTerms = feedbackData.getTerms();
+        trace.setVocabularySize(allTerms.length);
+        int[] ids = selectCandidates(feedbackData, queryParameters, trace);
+        String[] terms = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            terms[i] = allTerms[ids[i]];
+        }
+        long start = trace.start();
+        double[] pwcs = background.getProbabilities(terms);
+        trace.stop(QueryTrace.Stage.STATS_LOOKUP, start);
 
-        while (!convergence(weights, nextWeights)) {
-
-            weights = nextWeights;
-
-            for (String term: termCounts.keySet()){
-                // update ps
-                double weight = weights.get(term);
-                double p = weight / (weight + pwcs.get(term));
-                ps.put(term, p);
+        double maxPwc = queryParameters.get("fbMaxPwc", 1.0);
+        int numTerms = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (pwcs[i] <= maxPwc) {
+                ids[numTerms] = ids[i];
+                terms[numTerms] = terms[i];
+                pwcs[numTerms] = pwcs[i];
+                numTerms++;
             }
+        }
+        trace.setPrunedByPwc(ids.length - numTerms);
+        trace.setEmTerms(numTerms);
+        ids = Arrays.copyOf(ids, numTerms);
+        terms = Arrays.copyOf(terms, numTerms);
+        pwcs = Arrays.copyOf(pwcs, numTerms);
+        int[] termFreqs = new int[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            termFreqs[i] = feedbackData.getTermTotals()[ids[i]];
+        }
 
-            for (String term: termCounts.keySet()){
-                // update newWeights
-                double ttl = 0.0;
-                int termFreq = termFreqs.get(term);
-                for (Map.Entry<String, Double> entry: ps.entrySet()){
-                    ttl += termFreqs.get(entry.getKey()) * entry.getValue();
+        MixtureEM em = new MixtureEM(termFreqs, pwcs, queryParameters.get("lambda", defaultLambda))
+                .setTolerance(queryParameters.get("emTolerance", MixtureEM.DEFAULT_TOLERANCE))
+                .setMaxIterations((int) queryParameters.get("emMaxIterations", (long) MixtureEM.DEFAULT_MAX_ITERATIONS))
+                .setConvergence(MixtureEM.Convergence.forName(queryParameters.get("emConvergence", "maxAbs")));
+        String warmStart = queryParameters.get("emWarmStart", "none");
+        start = trace.start();
+        double[] weights;
+        switch (warmStart) {
+            case "none":
+                weights = em.run();
+                break;
+            case "mle":
+                weights = em.run(em.maximumLikelihood());
+                break;
+            case "cached":
+                TObjectDoubleHashMap<String> previous = (warmStartKey == null) ? null : warmStartWeights.getIfPresent(warmStartKey);
+                if (previous == null) {
+                    weights = em.run(em.maximumLikelihood());
+                } else {
+                    double[] initial = new double[numTerms];
+                    for (int i = 0; i < numTerms; i++) {
+                        initial[i] = previous.get(terms[i]);
+                    }
+                    weights = em.run(initial);
                 }
-                double newWeight = (termFreq * ps.get(term)) / ttl;
-                nextWeights.put(term, newWeight);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown emWarmStart: " + warmStart);
+        }
+        trace.stop(QueryTrace.Stage.EM, start);
+        trace.setEmIterations(em.getIterations());
+        trace.setEmConverged(em.isConverged());
+        if (warmStart.equals("cached") && warmStartKey != null) {
+            TObjectDoubleHashMap<String> last = new TObjectDoubleHashMap<>(numTerms * 2, 0.5f, 0.0);
+            for (int i = 0; i < numTerms; i++) {
+                last.put(terms[i], weights[i]);
             }
+            warmStartWeights.put(warmStartKey, last);
         }
-
-        return convert(nextWeights);
+        double[] res = new double[allTerms.length];
+        for (int i = 0; i < numTerms; i++) {
+            res[ids[i]] = weights[i];
+        }
+        return res;
     }
+    
+    /**
+     * @return ids of the feedback terms that pass the fbMinDf and
+     * fbMaxCandidates filters, in increasing order
+     */
+    int[] selectCandidates(FeedbackData feedbackData, Parameters queryParameters, QueryTrace trace) {
+        int[] docFreqs = feedbackData.getTermDocFreqs();
+        int[] termTotals = feedbackData.getTermTotals();
+        long minDf = queryParameters.get("fbMinDf", 1L);
+        int maxCandidates = (int) queryParameters.get("fbMaxCandidates", 0L);
 
-    public boolean convergence(Map<String, Double> a, Map<String, Double> b) {
-        for (Map.Entry<String, Double> entry: a.entrySet()){
-            if (Math.abs(b.get(entry.getKey())-entry.getValue()) < 0.0001){
+        int[] ids = new int[docFreqs.length];
+        int n = 0;
+        for (int id = 0; id < docFreqs.length; id++) {
+            if (docFreqs[id] >= minDf)
+                ids[n++] = id;
+        }
+        trace.setPrunedByDf(docFreqs.length - n);
+        ids = Arrays.copyOf(ids, n);
 
-            } else {
-                return false;
+        if (maxCandidates > 0 && n > maxCandidates) {
+            String[] terms = new String[n];
+            double[] freqs = new double[n];
+            for (int i = 0; i < n; i++) {
+                terms[i] = feedbackData.getTerm(ids[i]);
+                freqs[i] = termTotals[ids[i]];
+            }
+            int[] top = TopTermSelector.selectIds(terms, freqs, maxCandidates);
+            for (int i = 0; i < top.length; i++) {
+                top[i] = ids[top[i]];
             }
+            Arrays.sort(top);
+            ids = top;
         }
-        return true;
+        trace.setPrunedByCandidates(n - ids.length);
+        return ids;
     }
 
     public List <WeightedTerm> convert(Map<String, Double> weights) {
-        List <WeightedTerm> res = new LinkedList<>();
+        List <WeightedTerm> res = new ArrayList<>(weights.size());
         for (String t: weights.keySet()){
             WeightedTerm wt = new WeightedUnigram(t, weights.get(t));
             res.add(wt);
@@ -0,0 +1,230 @@
+package edu.umass.cs.cs646;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.RetrievalFactory;
+import org.lemurproject.galago.core.retrieval.ScoredDocument;
+import org.lemurproject.galago.core.retrieval.prf.WeightedTerm;
+import org.lemurproject.galago.core.retrieval.query.Node;
+import org.lemurproject.galago.core.retrieval.query.StructuredQuery;
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * Runs every query of a query file once per combination of fbDocs, fbTerm,
+ * fbOrigWeight and lambda, writing one run file per combination.
+ *
+ * Work is shared across the grid: per query, the initial retrieval and the
+ * document fetch happen once, at the largest fbDocs; smaller fbDocs use
+ * prefixes of that feedback data. EM runs once per (fbDocs, lambda), the
+ * fbTerm values are prefixes of one top-term selection, and fbOrigWeight
+ * only changes the interpolation. Only the final retrieval runs per
+ * combination, concurrently on "threads" workers.
+ *
+ * Usage: ParameterSweep --index=path --queries=file --output=prefix
+ * --fbDocs+10 --fbDocs+20 --fbTerm+50 --fbOrigWeight+0.5 --lambda+0.5 ...
+ */
+public class ParameterSweep {
+    private static final Logger logger = Logger.getLogger("ParameterSweep");
+
+    private final int[] fbDocs;
+    private final int[] fbTerms;
+    private final double[] fbOrigWeights;
+    private final double[] lambdas;
+    private final int threads;
+
+    public ParameterSweep(int[] fbDocs, int[] fbTerms, double[] fbOrigWeights, double[] lambdas, int threads) {
+        this.fbDocs = fbDocs.clone();
+        this.fbTerms = fbTerms.clone();
+        this.fbOrigWeights = fbOrigWeights.clone();
+        this.lambdas = lambdas.clone();
+        this.threads = threads;
+        Arrays.sort(this.fbDocs);
+        Arrays.sort(this.fbTerms);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Parameters p = Parameters.parseArgs(args);
+        if (!p.isString("index") || !p.isString("queries") || !p.isString("output")) {
+            System.err.println("Usage: ParameterSweep --index=path --queries=file --output=prefix"
+                    + " [--fbDocs+N ...] [--fbTerm+N ...] [--fbOrigWeight+W ...] [--lambda+L ...] [--threads=N]");
+            System.exit(1);
+        }
+        ParameterSweep sweep = new ParameterSweep(
+                toInts(grid(p, "fbDocs", 10)),
+                toInts(grid(p, "fbTerm", 50)),
+                grid(p, "fbOrigWeight", 0.5),
+                grid(p, "lambda", 0.5),
+                (int) p.get("threads", (long) Runtime.getRuntime().availableProcessors()));
+        sweep.run(p.getString("index"), p.getString("queries"), p.getString("output"), p);
+    }
+
+    /**
+     * @return the values of a list (or single valued) parameter
+     */
+    static double[] grid(Parameters p, String key, double defaultValue) {
+        if (!p.containsKey(key))
+            return new double[]{defaultValue};
+        if (!p.isList(key))
+            return new double[]{p.getDouble(key)};
+        List<?> values = p.getList(key);
+        double[] res = new double[values.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = ((Number) values.get(i)).doubleValue();
+        }
+        return res;
+    }
+
+    static int[] toInts(double[] values) {
+        int[] res = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            res[i] = (int) Math.round(values[i]);
+        }
+        return res;
+    }
+
+    /**
+     * @return output prefix plus the settings of one combination
+     */
+    public static String runFileName(String prefix, int fbDocs, int fbTerm, double fbOrigWeight, double lambda) {
+        return prefix + ".fbDocs" + fbDocs + ".fbTerm" + fbTerm + ".fbOrigWeight" + fbOrigWeight + ".lambda" + lambda;
+    }
+
+    public void run(String indexPath, String queryFileName, String outputPrefix) throws Exception {
+        run(indexPath, queryFileName, outputPrefix, Parameters.create());
+    }
+
+    /**
+     * @param globalParameters global parameters of the retrieval, such as the
+     * cache sizes or "backgroundModel"
+     */
+    public void run(String indexPath, String queryFileName, String outputPrefix, Parameters globalParameters) throws Exception {
+        Retrieval retrieval = RetrievalFactory.instance(indexPath, globalParameters);
+        BackgroundModel background = BackgroundModel.open(retrieval);
+        DocumentVectorCache documentCache = new DocumentVectorCache(retrieval.getGlobalParameters());
+        MixtureFeedbackModel model = new MixtureFeedbackModel(retrieval, background, documentCache);
+
+        // writers[d][l][t][w], in the same order as the loops below
+        List<ResultWriter> writers = new ArrayList<>();
+        for (int d : fbDocs) {
+            for (double l : lambdas) {
+                for (int t : fbTerms) {
+                    for (double w : fbOrigWeights) {
+                        writers.add(new RunFileWriter(runFileName(outputPrefix, d, t, w, l), false));
+                    }
+                }
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try (QuerySource queries = QuerySource.open(queryFileName)) {
+            while (queries.hasNext()) {
+                Parameters query = queries.next();
+                List<List<ScoredDocument>> results = sweep(retrieval, model, query, executor);
+                for (int i = 0; i < writers.size(); i++) {
+                    writers.get(i).write(query.getString("number"), results.get(i));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            for (ResultWriter writer : writers) {
+                writer.close();
+            }
+        }
+        logger.info("Wrote " + writers.size() + " run files; " + background + "; " + documentCache);
+    }
+
+    /**
+     * @return the final results of one query for every combination, in the
+     * order of the run files. As in {@link BatchSearch#search}, a
+     * combination whose expansion fails runs the original query.
+     */
+    public List<List<ScoredDocument>> sweep(Retrieval retrieval, MixtureFeedbackModel model, Parameters query, ExecutorService executor) throws Exception {
+        String queryNumber = query.getString("number");
+        BatchSearch.setRetrievalParameters(query);
+        Node root = StructuredQuery.parse(query.getString("text").toLowerCase());
+        QueryTrace trace = new QueryTrace(queryNumber);
+        long start = trace.start();
+
+        // one initial retrieval and fetch, at the largest fbDocs
+        Parameters maxParams = query.clone();
+        maxParams.set("fbDocs", (double) fbDocs[fbDocs.length - 1]);
+        // the smaller fbDocs are prefixes, which need the per-document counts
+        maxParams.set("fbStreaming", false);
+        Parameters fbParams = model.getFbParameters(root, maxParams);
+        FeedbackData all = null;
+        Set<String> queryTerms = null;
+        try {
+            Node transformed = retrieval.transformQuery(root.clone(), fbParams);
+            List<ScoredDocument> initialResults = model.collectInitialResults(transformed, fbParams);
+            queryTerms = model.getQueryTerms(transformed);
+            all = model.collectFeedbackData(initialResults, fbParams);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+
+        List<Future<List<ScoredDocument>>> pending = new ArrayList<>();
+        for (int d : fbDocs) {
+            for (double l : lambdas) {
+                List<WeightedTerm> top = null;
+                if (all != null) {
+                    try {
+                        FeedbackData feedbackData = all.prefix(d);
+                        Parameters emParams = query.clone();
+                        emParams.set("lambda", l);
+                        double[] weights = model.computeTermWeights(feedbackData, fbParams, emParams, queryTerms, trace);
+                        // every fbTerm is a prefix of the selection for the largest one
+                        top = TopTermSelector.select(feedbackData.getTerms(), weights, fbTerms[fbTerms.length - 1]);
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                }
+                for (int t : fbTerms) {
+                    for (double w : fbOrigWeights) {
+                        // the settings of this combination, as BatchSearch leaves them on the query
+                        Parameters finalParams = query.clone();
+                        finalParams.set("fbDocs", (double) d);
+                        finalParams.set("fbTerm", (double) t);
+                        finalParams.set("fbOrigWeight", w);
+                        finalParams.set("lambda", l);
+                        // transformQuery rewrites nodes in place, so every task gets its own tree
+                        Node expanded = root.clone();
+                        if (top != null) {
+                            try {
+                                int numTerms = MixtureFeedbackModel.getExpansionTermCount(top, t, query.get("fbWeightMass", 1.0));
+                                expanded = model.interpolate(root.clone(), model.generateExpansionQuery(top, numTerms), finalParams);
+                            } catch (Exception ex) {
+                                ex.printStackTrace();
+                            }
+                        }
+                        Node finalQuery = expanded;
+                        pending.add(executor.submit(() ->
+                                retrieval.executeQuery(retrieval.transformQuery(finalQuery, finalParams), finalParams).scoredDocuments));
+                    }
+                }
+            }
+        }
+
+        List<List<ScoredDocument>> res = new ArrayList<>(pending.size());
+        for (Future<List<ScoredDocument>> f : pending) {
+            try {
+                res.add(f.get());
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof Exception)
+                    throw (Exception) ex.getCause();
+                throw ex;
+            }
+        }
+        trace.stop(QueryTrace.Stage.TOTAL, start);
+        logger.info("Query #" + queryNumber + ": " + res.size() + " settings in "
+                + String.format("%.1f ms", trace.getNanos(QueryTrace.Stage.TOTAL) / 1e6));
+        return res;
+    }
+}
@@ -0,0 +1,81 @@
+package edu.umass.cs.cs646;
+
+import com.univocity.parsers.tsv.TsvParser;
+import com.univocity.parsers.tsv.TsvParserSettings;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * Reads a "number TAB text" query file one row at a time, so arbitrarily
+ * large query logs are processed in constant memory.
+ */
+public class QuerySource implements Iterator<Parameters>, Closeable {
+    private static final Logger logger = Logger.getLogger("QuerySource");
+    private final TsvParser parser;
+    private Parameters next;
+    private long row;
+    private long skipped;
+
+    public QuerySource(Reader reader) {
+        parser = new TsvParser(new TsvParserSettings());
+        parser.beginParsing(reader);
+        advance();
+    }
+
+    public static QuerySource open(String path) throws IOException {
+        return new QuerySource(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8));
+    }
+
+    private void advance() {
+        next = null;
+        String[] line;
+        while ((line = parser.parseNext()) != null) {
+            row++;
+            if (line.length < 2 || line[0] == null || line[1] == null) {
+                logger.warning("Skipping malformed query on line " + row);
+                skipped++;
+                continue;
+            }
+            next = Parameters.create();
+            next.set("number", line[0]);
+            next.set("text", line[1]);
+            return;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Parameters next() {
+        if (next == null)
+            throw new NoSuchElementException();
+        Parameters res = next;
+        advance();
+        return res;
+    }
+
+    /**
+     * @return number of malformed rows skipped so far
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public void close() {
+        if (skipped > 0)
+            logger.warning("Skipped " + skipped + " malformed queries out of " + row + " lines");
+        parser.stopParsing();
+    }
+}
@@ -0,0 +1,185 @@
+package edu.umass.cs.cs646;
+
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * Timings and sizes recorded while processing a single query.
+ */
+public class QueryTrace {
+    public enum Stage {
+        INITIAL_RETRIEVAL("initialRetrieval"),
+        DOCUMENT_FETCH("documentFetch"),
+        STATS_LOOKUP("statsLookup"),
+        EM("em"),
+        CANDIDATES("candidates"),
+        FINAL_RETRIEVAL("finalRetrieval"),
+        TOTAL("total");
+
+        final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+
+    final String queryNumber;
+    final long[] nanos = new long[Stage.values().length];
+    int emIterations;
+    boolean emConverged;
+    int vocabularySize;
+    // terms left for EM, and the terms removed by each pruning rule
+    int emTerms;
+    int prunedByDf;
+    int prunedByCandidates;
+    int prunedByPwc;
+    int feedbackDocs;
+    long bytesFetched;
+    // terms left in the expansion after the weight-mass cutoff
+    int expansionTerms;
+    // documents the expanded query was restricted to, 0 when not restricted
+    int candidatePoolSize;
+    boolean expansionCacheHit;
+
+    public QueryTrace(String queryNumber) {
+        this.queryNumber = queryNumber;
+    }
+
+    /**
+     * @return a start timestamp to pass to {@link #stop}
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void stop(Stage stage, long start) {
+        nanos[stage.ordinal()] += System.nanoTime() - start;
+    }
+
+    public long getNanos(Stage stage) {
+        return nanos[stage.ordinal()];
+    }
+
+    public String getQueryNumber() {
+        return queryNumber;
+    }
+
+    public int getEmIterations() {
+        return emIterations;
+    }
+
+    public void setEmIterations(int emIterations) {
+        this.emIterations = emIterations;
+    }
+
+    /**
+     * @return false if EM stopped at its iteration budget
+     */
+    public boolean isEmConverged() {
+        return emConverged;
+    }
+
+    public void setEmConverged(boolean emConverged) {
+        this.emConverged = emConverged;
+    }
+
+    public int getVocabularySize() {
+        return vocabularySize;
+    }
+
+    public void setVocabularySize(int vocabularySize) {
+        this.vocabularySize = vocabularySize;
+    }
+
+    public int getEmTerms() {
+        return emTerms;
+    }
+
+    public void setEmTerms(int emTerms) {
+        this.emTerms = emTerms;
+    }
+
+    public int getPrunedByDf() {
+        return prunedByDf;
+    }
+
+    public void setPrunedByDf(int prunedByDf) {
+        this.prunedByDf = prunedByDf;
+    }
+
+    public int getPrunedByCandidates() {
+        return prunedByCandidates;
+    }
+
+    public void setPrunedByCandidates(int prunedByCandidates) {
+        this.prunedByCandidates = prunedByCandidates;
+    }
+
+    public int getPrunedByPwc() {
+        return prunedByPwc;
+    }
+
+    public void setPrunedByPwc(int prunedByPwc) {
+        this.prunedByPwc = prunedByPwc;
+    }
+
+    public int getFeedbackDocs() {
+        return feedbackDocs;
+    }
+
+    public void setFeedbackDocs(int feedbackDocs) {
+        this.feedbackDocs = feedbackDocs;
+    }
+
+    public long getBytesFetched() {
+        return bytesFetched;
+    }
+
+    public void setBytesFetched(long bytesFetched) {
+        this.bytesFetched = bytesFetched;
+    }
+
+    public int getExpansionTerms() {
+        return expansionTerms;
+    }
+
+    public void setExpansionTerms(int expansionTerms) {
+        this.expansionTerms = expansionTerms;
+    }
+
+    public int getCandidatePoolSize() {
+        return candidatePoolSize;
+    }
+
+    public void setCandidatePoolSize(int candidatePoolSize) {
+        this.candidatePoolSize = candidatePoolSize;
+    }
+
+    public boolean isExpansionCacheHit() {
+        return expansionCacheHit;
+    }
+
+    public void setExpansionCacheHit(boolean expansionCacheHit) {
+        this.expansionCacheHit = expansionCacheHit;
+    }
+
+    public Parameters toParameters() {
+        Parameters p = Parameters.create();
+        p.set("query", queryNumber);
+        for (Stage stage : Stage.values()) {
+            p.set(stage.key + "Ms", nanos[stage.ordinal()] / 1e6);
+        }
+        p.set("emIterations", emIterations);
+        p.set("emConverged", emConverged);
+        p.set("vocabularySize", vocabularySize);
+        p.set("emTerms", emTerms);
+        p.set("prunedByDf", prunedByDf);
+        p.set("prunedByCandidates", prunedByCandidates);
+        p.set("prunedByPwc", prunedByPwc);
+        p.set("feedbackDocs", feedbackDocs);
+        p.set("bytesFetched", bytesFetched);
+        p.set("expansionTerms", expansionTerms);
+        p.set("candidatePoolSize", candidatePoolSize);
+        p.set("expansionCacheHit", expansionCacheHit);
+        return p;
+    }
+}
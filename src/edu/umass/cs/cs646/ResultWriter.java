@@ -23,6 +23,10 @@ public class ResultWriter {
         out = System.out;
     }
     
+    protected ResultWriter (PrintStream out){
+        this.out = out;
+    }
+    
     public void write (String queryNumber, List<ScoredDocument> results, boolean trecFormat) {
         if (!results.isEmpty()) {
             for (ScoredDocument sd : results) {
@@ -0,0 +1,315 @@
+package edu.umass.cs.cs646;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.lemurproject.galago.core.retrieval.ScoredDocument;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * Run file writer that formats result lines straight into a reusable byte
+ * buffer and hands the buffer to a FileChannel (or a compressing stream) once
+ * per query, instead of flushing a PrintStream on every line.
+ *
+ * TREC lines are byte-for-byte identical to ScoredDocument.toTRECformat.
+ * The binary format is read back by {@link BinaryRunReader}. Not thread-safe.
+ */
+public class RunFileWriter extends ResultWriter {
+    public enum Format { TREC, BINARY }
+
+    public enum Compression {
+        NONE, GZIP, XZ;
+
+        public static Compression forFileName(String fileName) {
+            if (fileName.endsWith(".gz"))
+                return GZIP;
+            if (fileName.endsWith(".xz"))
+                return XZ;
+            return NONE;
+        }
+    }
+
+    static final int BINARY_MAGIC = 0x4D4D5255; // "MMRU"
+    static final int BINARY_VERSION = 1;
+    private static final String SYSTEM = "galago";
+    private static final int FLUSH_THRESHOLD = 1 << 20;
+    private static final long[] POW10 = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L};
+    private static final int SCORE_DECIMALS = 8;
+
+    private final Format format;
+    private final FileChannel channel;
+    private final OutputStream compressed;
+    private final ByteBuffer direct;
+    private byte[] buf = new byte[64 * 1024];
+    private int pos;
+
+    public RunFileWriter(String outputFileName, boolean append) throws IOException {
+        this(outputFileName, append, formatForFileName(outputFileName), Compression.forFileName(outputFileName));
+    }
+
+    public RunFileWriter(String outputFileName, boolean append, Format format, Compression compression) throws IOException {
+        super(null);
+        this.format = format;
+        channel = append
+                ? FileChannel.open(Paths.get(outputFileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                : FileChannel.open(Paths.get(outputFileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        boolean empty = channel.size() == 0;
+        switch (compression) {
+            case GZIP:
+                compressed = new GZIPOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+                break;
+            case XZ:
+                compressed = new XZOutputStream(Channels.newOutputStream(channel), new LZMA2Options());
+                break;
+            default:
+                compressed = null;
+        }
+        direct = (compressed == null) ? ByteBuffer.allocateDirect(buf.length) : null;
+        if (format == Format.BINARY && empty) {
+            putInt(BINARY_MAGIC);
+            putInt(BINARY_VERSION);
+            flush();
+        }
+    }
+
+    /**
+     * Files ending in .bin (optionally followed by .gz or .xz) use the binary
+     * format, everything else is a TREC run.
+     */
+    public static Format formatForFileName(String fileName) {
+        String name = fileName;
+        if (name.endsWith(".gz") || name.endsWith(".xz"))
+            name = name.substring(0, name.length() - 3);
+        return name.endsWith(".bin") ? Format.BINARY : Format.TREC;
+    }
+
+    @Override
+    public void write(String queryNumber, List<ScoredDocument> results, boolean trecFormat) {
+        if (format == Format.BINARY) {
+            putString(queryNumber);
+            putInt(results.size());
+            for (ScoredDocument sd : results) {
+                putString(sd.documentName);
+                putInt(sd.rank);
+                putLong(Double.doubleToLongBits(sd.score));
+                flushIfFull();
+            }
+        } else {
+            for (ScoredDocument sd : results) {
+                if (trecFormat) {
+                    putTrecLine(queryNumber, sd);
+                } else {
+                    putAscii(sd.toString(queryNumber));
+                    putByte('\n');
+                }
+                flushIfFull();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * @return bytes written to the file so far; every write() ends on this
+     * boundary. Only defined for uncompressed output.
+     */
+    public long size() throws IOException {
+        if (compressed != null)
+            throw new IllegalStateException("size() is not defined for compressed output");
+        flush();
+        return channel.size();
+    }
+
+    /**
+     * Forces the written results to the storage device.
+     */
+    public void sync() throws IOException {
+        flush();
+        if (compressed != null)
+            compressed.flush();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+            if (compressed != null) {
+                compressed.close();
+            } else {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void putTrecLine(String queryNumber, ScoredDocument sd) {
+        putAscii(queryNumber);
+        putAscii(" Q0 ");
+        putAscii(sd.documentName);
+        putByte(' ');
+        putLong10(sd.rank);
+        putByte(' ');
+        putScore(sd.score);
+        putByte(' ');
+        putAscii(SYSTEM);
+        putByte('\n');
+    }
+
+    /**
+     * Same output as ScoredDocument.formatScore: an integer when the score is
+     * within 1e-5 of its truncation, "%10.8f" otherwise.
+     */
+    void putScore(double score) {
+        if (Math.abs(score - (int) score) < 0.00001) {
+            putLong10((int) score);
+            return;
+        }
+        double abs = Math.abs(score);
+        double scaled = abs * POW10[SCORE_DECIMALS];
+        if (Double.isNaN(score) || Double.isInfinite(score) || scaled >= 1e17) {
+            putAscii(String.format("%10.8f", score));
+            return;
+        }
+        long floor = (long) scaled;
+        double frac = scaled - floor;
+        // Formatter rounds half-up on the shortest decimal representation; too
+        // close to a tie, the binary product cannot tell which side it is on
+        double eps = scaled * 1e-15 + 1e-9;
+        if (Math.abs(frac - 0.5) < eps) {
+            putAscii(String.format("%10.8f", score));
+            return;
+        }
+        long rounded = (frac > 0.5) ? floor + 1 : floor;
+        long intPart = rounded / POW10[SCORE_DECIMALS];
+        long fracPart = rounded % POW10[SCORE_DECIMALS];
+
+        int width = SCORE_DECIMALS + 1 + digits(intPart) + (score < 0 ? 1 : 0);
+        for (int i = width; i < 10; i++)
+            putByte(' ');
+        if (score < 0)
+            putByte('-');
+        putLong10(intPart);
+        putByte('.');
+        for (int d = SCORE_DECIMALS - 1; d >= 0; d--) {
+            putByte((int) ('0' + (fracPart / POW10[d]) % 10));
+        }
+    }
+
+    private static int digits(long v) {
+        int n = 1;
+        while (v >= 10) {
+            v /= 10;
+            n++;
+        }
+        return n;
+    }
+
+    private void putLong10(long v) {
+        if (v < 0) {
+            if (v == Long.MIN_VALUE) {
+                putAscii(Long.toString(v));
+                return;
+            }
+            putByte('-');
+            v = -v;
+        }
+        int n = digits(v);
+        ensure(n);
+        for (int i = pos + n - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        pos += n;
+    }
+
+    private void putAscii(String s) {
+        int len = s.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // not plain ASCII, fall back to a real encoder for the rest
+                putBytes(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buf[pos++] = (byte) c;
+        }
+    }
+
+    private void putString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        putInt(bytes.length);
+        putBytes(bytes);
+    }
+
+    private void putBytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void putInt(int v) {
+        ensure(4);
+        buf[pos++] = (byte) (v >>> 24);
+        buf[pos++] = (byte) (v >>> 16);
+        buf[pos++] = (byte) (v >>> 8);
+        buf[pos++] = (byte) v;
+    }
+
+    private void putLong(long v) {
+        putInt((int) (v >>> 32));
+        putInt((int) v);
+    }
+
+    private void putByte(int b) {
+        ensure(1);
+        buf[pos++] = (byte) b;
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            byte[] grown = new byte[Math.max(buf.length * 2, pos + n)];
+            System.arraycopy(buf, 0, grown, 0, pos);
+            buf = grown;
+        }
+    }
+
+    private void flushIfFull() {
+        if (pos >= FLUSH_THRESHOLD)
+            flush();
+    }
+
+    private void flush() {
+        if (pos == 0)
+            return;
+        try {
+            if (compressed != null) {
+                compressed.write(buf, 0, pos);
+            } else {
+                int off = 0;
+                while (off < pos) {
+                    direct.clear();
+                    int n = Math.min(direct.capacity(), pos - off);
+                    direct.put(buf, off, n);
+                    direct.flip();
+                    while (direct.hasRemaining())
+                        channel.write(direct);
+                    off += n;
+                }
+            }
+            pos = 0;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package edu.umass.cs.cs646;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Checkpoint journal of a run file: a sidecar file with one line per
+ * completed query, holding the query number and the size of the run file
+ * after its results.
+ *
+ * A query counts as done only once its journal line is complete. On
+ * resume, the run file is truncated back to the size recorded by the last
+ * complete line, which drops the partial ranking of a query that was being
+ * written when the process died; an incomplete last journal line is
+ * dropped as well. Only uncompressed run files can be journaled.
+ */
+public class RunJournal implements Closeable {
+    private static final Logger logger = Logger.getLogger("RunJournal");
+    public static final String SUFFIX = ".journal";
+
+    private final Set<String> completed = new LinkedHashSet<>();
+    private final FileChannel journal;
+    private final boolean sync;
+    private long committedSize;
+
+    /**
+     * @param resume if false, any previous run file and journal are discarded
+     * @param sync if true, every commit is forced to the storage device, so
+     * it also survives an operating system crash
+     */
+    public RunJournal(String runFileName, boolean resume, boolean sync) throws IOException {
+        if (RunFileWriter.Compression.forFileName(runFileName) != RunFileWriter.Compression.NONE)
+            throw new IllegalArgumentException("Checkpointing needs an uncompressed run file: " + runFileName);
+        this.sync = sync;
+        Path runFile = Paths.get(runFileName);
+        Path journalFile = Paths.get(runFileName + SUFFIX);
+        long journalSize = 0;
+        if (resume && Files.exists(journalFile)) {
+            byte[] bytes = Files.readAllBytes(journalFile);
+            int lineStart = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != '\n')
+                    continue;
+                String line = new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8);
+                int tab = line.lastIndexOf('\t');
+                completed.add(line.substring(0, tab));
+                committedSize = Long.parseLong(line.substring(tab + 1));
+                lineStart = i + 1;
+                journalSize = lineStart;
+            }
+        }
+        long runSize = Files.exists(runFile) ? Files.size(runFile) : 0;
+        if (runSize < committedSize)
+            throw new IOException("Run file " + runFileName + " is shorter than its journal: " + runSize + " < " + committedSize);
+        try (FileChannel run = FileChannel.open(runFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            run.truncate(committedSize);
+        }
+        journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        journal.truncate(journalSize);
+        journal.position(journalSize);
+        if (!completed.isEmpty())
+            logger.info("Resuming " + runFileName + " after " + completed.size() + " completed queries");
+    }
+
+    /**
+     * @return true if the query was committed by an earlier run
+     */
+    public boolean isCompleted(String queryNumber) {
+        return completed.contains(queryNumber);
+    }
+
+    public Set<String> getCompleted() {
+        return Collections.unmodifiableSet(completed);
+    }
+
+    /**
+     * @return run file size covered by the journal
+     */
+    public long getCommittedSize() {
+        return committedSize;
+    }
+
+    /**
+     * Records that the results of queryNumber are complete in the run file,
+     * which now has runFileSize bytes.
+     */
+    public void commit(String queryNumber, long runFileSize) throws IOException {
+        if (queryNumber.indexOf('\n') >= 0)
+            throw new IllegalArgumentException("Query number contains a newline: " + queryNumber);
+        ByteBuffer line = ByteBuffer.wrap((queryNumber + "\t" + runFileSize + "\n").getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) {
+            journal.write(line);
+        }
+        if (sync)
+            journal.force(false);
+        completed.add(queryNumber);
+        committedSize = runFileSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
@@ -0,0 +1,123 @@
+package edu.umass.cs.cs646;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges the run files of a sharded BatchSearch run (see
+ * {@link BatchSearch#setShard}) into one run file in query-file order.
+ * Query i of the query file is taken from shard i % numShards, so the
+ * result does not depend on which shard finished first.
+ *
+ * Usage: RunMerger queryFile outputFile shard0 shard1 ...
+ */
+public class RunMerger {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: RunMerger queryFile outputFile shard0 shard1 ...");
+            System.exit(1);
+        }
+        List<String> shards = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            shards.add(args[i]);
+        }
+        merge(args[0], shards, args[1]);
+    }
+
+    public static void merge(String queryFileName, List<String> shardFileNames, String outputFileName) throws IOException {
+        if (RunFileWriter.formatForFileName(outputFileName) == RunFileWriter.Format.BINARY) {
+            mergeBinary(queryFileName, shardFileNames, outputFileName);
+        } else {
+            mergeTrec(queryFileName, shardFileNames, outputFileName);
+        }
+    }
+
+    /**
+     * Copies the TREC lines of every query verbatim. Queries without results
+     * have no lines, so each shard is matched by query number.
+     */
+    private static void mergeTrec(String queryFileName, List<String> shardFileNames, String outputFileName) throws IOException {
+        List<TrecShard> shards = new ArrayList<>();
+        try (QuerySource queries = QuerySource.open(queryFileName);
+             Writer out = new BufferedWriter(Files.newBufferedWriter(Paths.get(outputFileName), StandardCharsets.UTF_8), 1 << 20)) {
+            for (String name : shardFileNames) {
+                if (RunFileWriter.Compression.forFileName(name) != RunFileWriter.Compression.NONE)
+                    throw new IOException("TREC shards must be uncompressed: " + name);
+                shards.add(new TrecShard(Files.newBufferedReader(Paths.get(name), StandardCharsets.UTF_8), name));
+            }
+            int index = 0;
+            while (queries.hasNext()) {
+                String number = queries.next().getString("number");
+                shards.get(index++ % shards.size()).copy(number, out);
+            }
+            for (TrecShard shard : shards) {
+                shard.checkDone();
+            }
+        } finally {
+            for (TrecShard shard : shards) {
+                shard.close();
+            }
+        }
+    }
+
+    private static void mergeBinary(String queryFileName, List<String> shardFileNames, String outputFileName) throws IOException {
+        List<BinaryRunReader> shards = new ArrayList<>();
+        RunFileWriter out = new RunFileWriter(outputFileName, false);
+        try (QuerySource queries = QuerySource.open(queryFileName)) {
+            for (String name : shardFileNames) {
+                shards.add(BinaryRunReader.open(name));
+            }
+            int index = 0;
+            while (queries.hasNext()) {
+                String number = queries.next().getString("number");
+                int s = index++ % shards.size();
+                BinaryRunReader shard = shards.get(s);
+                if (!shard.next() || !shard.getQueryNumber().equals(number))
+                    throw new IOException("Shard " + shardFileNames.get(s) + " does not continue with query " + number);
+                out.write(number, shard.getResults());
+            }
+        } finally {
+            out.close();
+            for (BinaryRunReader shard : shards) {
+                shard.close();
+            }
+        }
+    }
+
+    private static class TrecShard {
+        final BufferedReader in;
+        final String name;
+        String line;
+
+        TrecShard(BufferedReader in, String name) throws IOException {
+            this.in = in;
+            this.name = name;
+            line = in.readLine();
+        }
+
+        void copy(String queryNumber, Writer out) throws IOException {
+            while (line != null && line.substring(0, line.indexOf(' ')).equals(queryNumber)) {
+                out.write(line);
+                out.write('\n');
+                line = in.readLine();
+            }
+        }
+
+        void checkDone() throws IOException {
+            if (line != null)
+                throw new IOException("Shard " + name + " has results for a query out of order: " + line);
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+}
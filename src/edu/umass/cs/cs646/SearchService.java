@@ -0,0 +1,257 @@
+package edu.umass.cs.cs646;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.RetrievalFactory;
+import org.lemurproject.galago.core.retrieval.ScoredDocument;
+import org.lemurproject.galago.utility.Parameters;
+
+/**
+ * Resident search service: keeps one Retrieval, its caches and the mixture
+ * model warm and serves searches with query expansion over local HTTP/JSON.
+ *
+ * POST /search takes one query ({"text": ..., "number": ...}, plus any query
+ * parameters) or a batch ({"queries": [...]}) and answers with the top
+ * "count" documents and the stage timings of every query. GET /metrics
+ * returns the latency summary and cache statistics.
+ *
+ * Queries run on a fixed pool of "threads" workers. At most "maxPending"
+ * queries may be queued or running; a request that does not fit is rejected
+ * at once with 503, so clients see backpressure instead of growing latency.
+ *
+ * Usage: SearchService --index=path [--port=8080] [--threads=N]
+ * [--maxPending=M] [--trace=file]
+ */
+public class SearchService {
+    private static final Logger logger = Logger.getLogger("SearchService");
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_COUNT = 100;
+
+    private final Retrieval retrieval;
+    private final BackgroundModel background;
+    private final DocumentVectorCache documentCache;
+    private final ExpansionCache expansionCache;
+    private final MixtureFeedbackModel model;
+    private final ExpansionMetrics metrics;
+    private final BatchSearch search = new BatchSearch();
+    private final ExecutorService workers;
+    private final Semaphore pending;
+    private final int maxPending;
+    private final Server server;
+
+    public SearchService(Parameters p) throws Exception {
+        int threads = (int) p.get("threads", (long) Runtime.getRuntime().availableProcessors());
+        maxPending = (int) p.get("maxPending", (long) threads * BatchSearch.PENDING_PER_THREAD);
+
+        // the service parameters double as global retrieval parameters (cache sizes, backgroundModel, ...)
+        retrieval = RetrievalFactory.instance(p.getString("index"), p);
+        background = BackgroundModel.open(retrieval);
+        documentCache = new DocumentVectorCache(retrieval.getGlobalParameters());
+        expansionCache = ExpansionCache.open(retrieval);
+        model = new MixtureFeedbackModel(retrieval, background, documentCache, expansionCache);
+        metrics = new ExpansionMetrics(p.get("trace", (String) null));
+        workers = Executors.newFixedThreadPool(threads);
+        pending = new Semaphore(maxPending);
+
+        server = new Server(new QueuedThreadPool((int) p.get("httpThreads", 16L)));
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost(p.get("host", "127.0.0.1"));
+        connector.setPort((int) p.get("port", (long) DEFAULT_PORT));
+        server.addConnector(connector);
+        server.setHandler(new Handler());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Parameters p = Parameters.parseArgs(args);
+        if (!p.isString("index")) {
+            System.err.println("Usage: SearchService --index=path [--port=8080] [--threads=N] [--maxPending=M] [--trace=file]");
+            System.exit(1);
+        }
+        SearchService service = new SearchService(p);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                service.stop();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }));
+        service.start();
+        service.join();
+    }
+
+    public void start() throws Exception {
+        server.start();
+        logger.info("Serving " + retrieval.getGlobalParameters().get("index", "") + " on " + server.getURI());
+    }
+
+    public void join() throws InterruptedException {
+        server.join();
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+        workers.shutdownNow();
+        metrics.close();
+        if (expansionCache != null)
+            expansionCache.close();
+        retrieval.close();
+        logger.info("Per-query latency:\n" + metrics.summary());
+    }
+
+    /**
+     * Runs a batch of queries concurrently on the worker pool.
+     *
+     * @return the response of every query, in request order, or null if the
+     * batch does not fit into the pending limit
+     * @throws IllegalArgumentException if a query has no text
+     */
+    public List<Parameters> search(List<Parameters> queries, int count) throws Exception {
+        validate(queries);
+        if (!pending.tryAcquire(queries.size()))
+            return null;
+        List<Future<Parameters>> futures = new ArrayList<>(queries.size());
+        int submitted = 0;
+        try {
+            for (int i = 0; i < queries.size(); i++) {
+                Parameters query = queries.get(i);
+                futures.add(workers.submit(() -> {
+                    try {
+                        return searchOne(query, count);
+                    } finally {
+                        pending.release();
+                    }
+                }));
+                submitted++;
+            }
+        } finally {
+            // permits of queries that never reached the pool
+            pending.release(queries.size() - submitted);
+        }
+        List<Parameters> res = new ArrayList<>(futures.size());
+        for (Future<Parameters> f : futures) {
+            res.add(f.get());
+        }
+        return res;
+    }
+
+    /**
+     * Checks that every query has a text, and gives every query a string
+     * number: its own (integers are converted) or its position in the batch.
+     *
+     * @throws IllegalArgumentException for a query the service cannot run
+     */
+    static void validate(List<Parameters> queries) {
+        for (int i = 0; i < queries.size(); i++) {
+            Parameters query = queries.get(i);
+            if (!query.isString("text"))
+                throw new IllegalArgumentException("Query " + i + " has no \"text\" string");
+            if (query.isLong("number")) {
+                query.set("number", String.valueOf(query.getLong("number")));
+            } else if (!query.containsKey("number")) {
+                query.set("number", String.valueOf(i));
+            } else if (!query.isString("number")) {
+                throw new IllegalArgumentException("Query " + i + " has a \"number\" that is neither a string nor an integer");
+            }
+        }
+    }
+
+    private Parameters searchOne(Parameters query, int count) throws Exception {
+        QueryTrace trace = new QueryTrace(query.getString("number"));
+        List<ScoredDocument> results = search.search(retrieval, model, query, metrics, trace);
+        List<Parameters> docs = new ArrayList<>(Math.min(count, results.size()));
+        for (ScoredDocument sd : results) {
+            if (docs.size() >= count)
+                break;
+            Parameters doc = Parameters.create();
+            doc.set("name", sd.documentName);
+            doc.set("rank", (long) sd.rank);
+            doc.set("score", sd.score);
+            docs.add(doc);
+        }
+        Parameters res = Parameters.create();
+        res.set("number", query.getString("number"));
+        res.set("documents", docs);
+        res.set("trace", trace.toParameters());
+        return res;
+    }
+
+    private Parameters metricsSummary() {
+        Parameters res = Parameters.create();
+        res.set("latency", metrics.summary());
+        res.set("background", background.toString());
+        res.set("documentCache", documentCache.toString());
+        res.set("expansionCache", String.valueOf(expansionCache));
+        res.set("pending", (long) (maxPending - pending.availablePermits()));
+        res.set("maxPending", (long) maxPending);
+        return res;
+    }
+
+    private class Handler extends AbstractHandler {
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+            long start = System.nanoTime();
+            baseRequest.setHandled(true);
+            response.setContentType("application/json; charset=utf-8");
+            Parameters res;
+            int status = HttpServletResponse.SC_OK;
+            try {
+                if (target.equals("/search") && request.getMethod().equals("POST")) {
+                    Parameters body = Parameters.parseReader(request.getReader());
+                    List<Parameters> queries = body.isList("queries")
+                            ? body.getAsList("queries", Parameters.class) : Collections.singletonList(body);
+                    if (queries.size() > maxPending) {
+                        status = HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE;
+                        res = error("Batch of " + queries.size() + " queries exceeds maxPending=" + maxPending);
+                    } else {
+                        List<Parameters> results = search(queries, (int) body.get("count", (long) DEFAULT_COUNT));
+                        if (results == null) {
+                            status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+                            response.setHeader("Retry-After", "1");
+                            res = error("Too many pending queries");
+                        } else {
+                            res = Parameters.create();
+                            res.set("results", results);
+                        }
+                    }
+                } else if (target.equals("/metrics")) {
+                    res = metricsSummary();
+                } else {
+                    status = HttpServletResponse.SC_NOT_FOUND;
+                    res = error("Unknown endpoint: " + request.getMethod() + " " + target);
+                }
+            } catch (IOException | IllegalArgumentException ex) {
+                status = HttpServletResponse.SC_BAD_REQUEST;
+                res = error(ex.toString());
+            } catch (Exception ex) {
+                status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+                res = error(ex.toString());
+            }
+            double elapsed = (System.nanoTime() - start) / 1e6;
+            res.set("elapsedMillis", elapsed);
+            response.setStatus(status);
+            response.getWriter().write(res.toString());
+            logger.fine(request.getMethod() + " " + target + " " + status + " " + String.format("%.3f ms", elapsed));
+        }
+    }
+
+    private static Parameters error(String message) {
+        Parameters res = Parameters.create();
+        res.set("error", message);
+        return res;
+    }
+}
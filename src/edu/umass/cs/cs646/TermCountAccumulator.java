@@ -0,0 +1,350 @@
+package edu.umass.cs.cs646;
+
+import edu.umass.cs.cs646.DocumentVectorCache.DocumentVector;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import org.lemurproject.galago.core.parse.stem.Stemmer;
+
+/**
+ * Aggregated term counts of a stream of documents: c(w;F) and the number of
+ * documents containing w, without per-document counts.
+ *
+ * Documents are counted as they arrive and can be dropped right after. The
+ * term dictionary is charged against a memory budget; once it is exceeded,
+ * the counts so far are written to a spill file sorted by term and counting
+ * starts over with an empty dictionary. {@link #finish()} merges the spill
+ * files, so the final vocabulary is held once, in compact arrays. Spills
+ * only happen between documents, so document frequencies add up across
+ * them. Not thread-safe.
+ */
+public class TermCountAccumulator implements Closeable {
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+    // rough heap cost of a distinct term besides its characters: the string,
+    // its entries in the maps of the TermProcessor and its counters
+    static final int TERM_OVERHEAD_BYTES = 128;
+    // spill files merged at once, bounding the open files
+    static final int MERGE_FAN_IN = 64;
+
+    private final Set<String> exclusionTerms;
+    private final Stemmer stemmer;
+    private final long memoryBudget;
+    private final Path spillDirectory;
+    private final List<Path> spills = new ArrayList<>();
+
+    private TermProcessor processor;
+    private int[] totals;
+    private int[] docFreqs;
+    // 1 + number of the last document counted for each term
+    private int[] lastDoc;
+    private int accountedTerms;
+    private long memoryUsed;
+    private int numDocs;
+    private int numSpills;
+
+    private String[] terms;
+    private TObjectIntHashMap<String> termIds;
+    private int[] termTotals;
+    private int[] termDocFreqs;
+
+    /**
+     * @param stemmer if not null, terms are counted by their stem
+     * @param memoryBudget approximate bound in bytes on the heap used by the
+     * term dictionary before it is spilled to disk
+     * @param spillDirectory directory of the spill files, or null for the
+     * default temporary directory
+     */
+    public TermCountAccumulator(Set<String> exclusionTerms, Stemmer stemmer, long memoryBudget, String spillDirectory) {
+        this.exclusionTerms = exclusionTerms;
+        this.stemmer = stemmer;
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = (spillDirectory == null) ? null : Paths.get(spillDirectory);
+        reset();
+    }
+
+    private void reset() {
+        processor = new TermProcessor(exclusionTerms, stemmer);
+        totals = new int[1024];
+        docFreqs = new int[1024];
+        lastDoc = new int[1024];
+        accountedTerms = 0;
+        memoryUsed = 0;
+    }
+
+    /**
+     * Counts the terms of one document.
+     */
+    public void add(DocumentVector doc) throws IOException {
+        if (terms != null)
+            throw new IllegalStateException("Already finished");
+        numDocs++;
+        for (int t = 0; t < doc.size(); t++) {
+            int id = processor.getId(doc.getTerm(t));
+            if (id == TermProcessor.EXCLUDED)
+                continue;
+            if (id >= totals.length) {
+                int capacity = Math.max(id + 1, totals.length * 2);
+                totals = Arrays.copyOf(totals, capacity);
+                docFreqs = Arrays.copyOf(docFreqs, capacity);
+                lastDoc = Arrays.copyOf(lastDoc, capacity);
+            }
+            totals[id] += doc.getCount(t);
+            if (lastDoc[id] != numDocs) {
+                lastDoc[id] = numDocs;
+                docFreqs[id]++;
+            }
+        }
+        int numTerms = processor.getNumTerms();
+        for (int id = accountedTerms; id < numTerms; id++) {
+            memoryUsed += TERM_OVERHEAD_BYTES + 2L * processor.getTerm(id).length();
+        }
+        accountedTerms = numTerms;
+        if (memoryUsed > memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * Writes the current counts to a new spill file, sorted by term, and
+     * empties the dictionary.
+     */
+    private void spill() throws IOException {
+        String[] sorted = processor.getTerms();
+        Arrays.sort(sorted);
+        TObjectIntHashMap<String> ids = processor.getTermIds();
+        Path file = createSpillFile();
+        spills.add(file);
+        numSpills++;
+        try (DataOutputStream out = openSpill(file)) {
+            for (String term : sorted) {
+                int id = ids.get(term);
+                writeEntry(out, term, totals[id], docFreqs[id]);
+            }
+        }
+        reset();
+        if (spills.size() >= MERGE_FAN_IN) {
+            compact();
+        }
+    }
+
+    /**
+     * Merges all spill files into one.
+     */
+    private void compact() throws IOException {
+        Path file = createSpillFile();
+        try (DataOutputStream out = openSpill(file)) {
+            merge((term, total, docFreq) -> writeEntry(out, term, total, docFreq));
+        } catch (IOException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+        close();
+        spills.clear();
+        spills.add(file);
+    }
+
+    private Path createSpillFile() throws IOException {
+        return (spillDirectory == null)
+                ? Files.createTempFile("feedback", ".spill")
+                : Files.createTempFile(spillDirectory, "feedback", ".spill");
+    }
+
+    private static DataOutputStream openSpill(Path file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+    }
+
+    private static void writeEntry(DataOutputStream out, String term, int total, int docFreq) throws IOException {
+        byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt(total);
+        out.writeInt(docFreq);
+    }
+
+    /**
+     * Completes the counts, merging the spill files if there are any, and
+     * deletes the spill files.
+     */
+    public void finish() throws IOException {
+        if (terms != null)
+            return;
+        try {
+            if (spills.isEmpty()) {
+                int numTerms = processor.getNumTerms();
+                terms = processor.getTerms();
+                termIds = processor.getTermIds();
+                termTotals = Arrays.copyOf(totals, numTerms);
+                termDocFreqs = Arrays.copyOf(docFreqs, numTerms);
+            } else {
+                if (processor.getNumTerms() > 0) {
+                    spill();
+                }
+                List<String> merged = new ArrayList<>();
+                TIntArrayList mergedTotals = new TIntArrayList();
+                TIntArrayList mergedDocFreqs = new TIntArrayList();
+                merge((term, total, docFreq) -> {
+                    merged.add(term);
+                    mergedTotals.add(total);
+                    mergedDocFreqs.add(docFreq);
+                });
+                terms = merged.toArray(new String[merged.size()]);
+                termTotals = mergedTotals.toArray();
+                termDocFreqs = mergedDocFreqs.toArray();
+                termIds = new TObjectIntHashMap<>(Math.max(16, terms.length * 2), 0.5f, -1);
+                for (int id = 0; id < terms.length; id++) {
+                    termIds.put(terms[id], id);
+                }
+            }
+            processor = null;
+            totals = docFreqs = lastDoc = null;
+        } finally {
+            close();
+        }
+    }
+
+    private interface EntrySink {
+        void accept(String term, int total, int docFreq) throws IOException;
+    }
+
+    /**
+     * Passes the summed counts of every term in the spill files to sink, in
+     * term order.
+     */
+    private void merge(EntrySink sink) throws IOException {
+        PriorityQueue<SpillReader> queue = new PriorityQueue<>(spills.size(), (a, b) -> a.term.compareTo(b.term));
+        List<SpillReader> readers = new ArrayList<>(spills.size());
+        try {
+            for (Path file : spills) {
+                SpillReader reader = new SpillReader(file);
+                readers.add(reader);
+                if (reader.next())
+                    queue.add(reader);
+            }
+            while (!queue.isEmpty()) {
+                SpillReader reader = queue.poll();
+                String term = reader.term;
+                int total = reader.total;
+                int docFreq = reader.docFreq;
+                if (reader.next())
+                    queue.add(reader);
+                while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+                    reader = queue.poll();
+                    total += reader.total;
+                    docFreq += reader.docFreq;
+                    if (reader.next())
+                        queue.add(reader);
+                }
+                sink.accept(term, total, docFreq);
+            }
+        } finally {
+            for (SpillReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * @return number of documents counted
+     */
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    /**
+     * @return number of spill files written so far
+     */
+    public int getNumSpills() {
+        return numSpills;
+    }
+
+    /**
+     * @return the counted forms, indexed by term id; in order of first
+     * occurrence, or sorted if the counts were spilled
+     */
+    public String[] getTerms() {
+        checkFinished();
+        return terms;
+    }
+
+    /**
+     * @return counted form -> term id, -1 for unknown terms
+     */
+    public TObjectIntHashMap<String> getTermIds() {
+        checkFinished();
+        return termIds;
+    }
+
+    public int[] getTermTotals() {
+        checkFinished();
+        return termTotals;
+    }
+
+    public int[] getTermDocFreqs() {
+        checkFinished();
+        return termDocFreqs;
+    }
+
+    private void checkFinished() {
+        if (terms == null)
+            throw new IllegalStateException("Counts are not finished");
+    }
+
+    /**
+     * Deletes the spill files.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Path file : spills) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static class SpillReader implements Closeable {
+        final DataInputStream in;
+        String term;
+        int total;
+        int docFreq;
+
+        SpillReader(Path file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+        }
+
+        /**
+         * @return false at the end of the file
+         */
+        boolean next() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException ex) {
+                return false;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            term = new String(bytes, StandardCharsets.UTF_8);
+            total = in.readInt();
+            docFreq = in.readInt();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
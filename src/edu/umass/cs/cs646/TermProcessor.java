@@ -0,0 +1,100 @@
+package edu.umass.cs.cs646;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+import java.util.Arrays;
+import java.util.Set;
+import org.lemurproject.galago.core.parse.stem.Stemmer;
+
+/**
+ * Maps the surface forms of one query's feedback documents to dense term
+ * ids.
+ *
+ * Every distinct surface form is resolved once: the stopword check, the
+ * stemmer (if any) and the term dictionary are consulted on its first
+ * occurrence, and the outcome is memoized, so later occurrences cost a
+ * single hash lookup and allocate nothing. Not thread-safe; one instance
+ * serves one query.
+ */
+public class TermProcessor {
+    public static final int EXCLUDED = -1;
+    private static final int UNSEEN = -2;
+
+    private final Set<String> exclusionTerms;
+    private final Stemmer stemmer;
+    // surface form -> term id, or EXCLUDED
+    private final TObjectIntHashMap<String> surfaceIds;
+    // counted form -> term id
+    private final TObjectIntHashMap<String> termIds;
+    private String[] terms;
+    private int numTerms;
+
+    /**
+     * @param exclusionTerms surface forms that are never counted
+     * @param stemmer if not null, terms are counted by their stem, as
+     * {@link MixtureFeedbackModel#getTerms} does for query terms
+     */
+    public TermProcessor(Set<String> exclusionTerms, Stemmer stemmer) {
+        this.exclusionTerms = exclusionTerms;
+        this.stemmer = stemmer;
+        surfaceIds = new TObjectIntHashMap<>(1024, 0.5f, UNSEEN);
+        termIds = new TObjectIntHashMap<>(1024, 0.5f, -1);
+        terms = new String[1024];
+    }
+
+    /**
+     * @return the id of the counted form of surface, or EXCLUDED
+     */
+    public int getId(String surface) {
+        int id = surfaceIds.get(surface);
+        if (id != UNSEEN)
+            return id;
+        if (exclusionTerms.contains(surface)) {
+            id = EXCLUDED;
+        } else {
+            String term = (stemmer == null) ? surface : stemmer.stem(surface);
+            id = termIds.get(term);
+            if (id < 0)
+                id = addTerm(term);
+        }
+        surfaceIds.put(surface, id);
+        return id;
+    }
+
+    private int addTerm(String term) {
+        if (numTerms == terms.length) {
+            terms = Arrays.copyOf(terms, terms.length * 2);
+        }
+        terms[numTerms] = term;
+        termIds.put(term, numTerms);
+        return numTerms++;
+    }
+
+    public boolean isStemming() {
+        return stemmer != null;
+    }
+
+    public int getNumTerms() {
+        return numTerms;
+    }
+
+    /**
+     * @return the counted form with the given id
+     */
+    public String getTerm(int id) {
+        return terms[id];
+    }
+
+    /**
+     * @return the counted forms, indexed by term id
+     */
+    public String[] getTerms() {
+        return Arrays.copyOf(terms, numTerms);
+    }
+
+    /**
+     * @return counted form -> term id, -1 for unknown terms
+     */
+    TObjectIntHashMap<String> getTermIds() {
+        return termIds;
+    }
+}
@@ -0,0 +1,100 @@
+package edu.umass.cs.cs646;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.lemurproject.galago.core.retrieval.prf.WeightedTerm;
+
+/**
+ * Selects the k best terms from parallel term / weight arrays with a bounded
+ * min-heap of term ids, in O(V log k) time and O(k) space.
+ *
+ * The order is the one of {@link WeightedUnigram#compareTo}: higher weight
+ * first, ties broken by term, so the result equals the first k entries of
+ * the fully sorted list.
+ */
+public class TopTermSelector {
+
+    /**
+     * Terms without a positive weight, such as those pruned before EM, are
+     * never selected, so they cannot pad a short expansion.
+     *
+     * @return up to k terms, best first
+     */
+    public static List<WeightedTerm> select(String[] terms, double[] weights, int k) {
+        int[] ids = selectIds(terms, weights, k);
+        List<WeightedTerm> res = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            if (weights[id] <= 0)
+                break; // best first, so only non-positive weights follow
+            res.add(new WeightedUnigram(terms[id], weights[id]));
+        }
+        return res;
+    }
+
+    /**
+     * @return the ids of up to k terms, best first
+     */
+    public static int[] selectIds(String[] terms, double[] weights, int k) {
+        int n = Math.min(k, terms.length);
+        if (n <= 0)
+            return new int[0];
+        // heap[0] is the worst of the current top-k
+        int[] heap = new int[n];
+        int size = 0;
+        for (int id = 0; id < terms.length; id++) {
+            if (size < n) {
+                heap[size] = id;
+                siftUp(heap, size++, terms, weights);
+            } else if (better(id, heap[0], terms, weights)) {
+                heap[0] = id;
+                siftDown(heap, size, terms, weights);
+            }
+        }
+        // popping the worst first fills the result from the back
+        int[] res = new int[size];
+        for (int i = size - 1; i >= 0; i--) {
+            res[i] = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, size, terms, weights);
+        }
+        return res;
+    }
+
+    static boolean better(int a, int b, String[] terms, double[] weights) {
+        int c = Double.compare(weights[a], weights[b]);
+        if (c != 0)
+            return c > 0;
+        return terms[a].compareTo(terms[b]) < 0;
+    }
+
+    private static void siftUp(int[] heap, int i, String[] terms, double[] weights) {
+        int id = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!better(heap[parent], id, terms, weights))
+                break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = id;
+    }
+
+    private static void siftDown(int[] heap, int size, String[] terms, double[] weights) {
+        if (size == 0)
+            return;
+        int id = heap[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && better(heap[child], heap[child + 1], terms, weights))
+                child++;
+            if (!better(id, heap[child], terms, weights))
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = id;
+    }
+}